@@ -1,24 +1,79 @@
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.StringTokenizer;
+import java.util.Queue;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
 
 
 /**
@@ -396,9 +451,224 @@ import java.util.TreeMap;
  * Version 1.7.2 2021/07/31 Saturday
  * 機能追加
  *   ・行中リンクを行頭に使用すると変換されない事象を改修
+ * -------------------------------------------------------
+ * Version 1.7.3 2026/10/18 Sunday
+ * 機能追加
+ *   ・見出し判定と見出しレベル判定を行番号ベースに変更。
+ *     読み込み直後に行の種別と所属する見出しレベルの索引を
+ *     1 回だけ作成し、毎行の全行走査(O(N^2))をやめた。
+ *   ・同じ文字列の行が複数あると最初の行で判定されてしまう
+ *     障害を改修。
+ * -------------------------------------------------------
+ * Version 1.7.4 2026/10/18 Sunday
+ * 機能追加
+ *   ・シンタックスハイライトを予約語ごとの replace の繰り返し
+ *     から、トライ木による 1 回の走査に変更。出力バッファへ
+ *     直接書き出すようにした。
+ *   ・ハイライト済みの span の中を再度置換してしまう(@return
+ *     の中の return など)障害を改修。
+ * -------------------------------------------------------
+ * Version 1.7.5 2026/10/18 Sunday
+ * 機能追加
+ *   ・行中の装飾(``, ##, @@, &&, %%, __)・脚注・リンクの変換を
+ *     記号ごとの split の繰り返しから、行の先頭から 1 回だけ
+ *     走査する方式に変更。出力結果は従来と同じ。
+ * -------------------------------------------------------
+ * Version 1.8.0 2026/10/18 Sunday
+ * 機能追加
+ *   ・nozomi モードに 4 番目の起動パラメータ(並列数)を追加。
+ *     2 以上を指定するとフォルダ配下のファイルを Fork/Join で
+ *     並列にビルドする(0 は CPU 数)。カテゴリの出力内容と順序
+ *     は逐次ビルドと同じになるようにした。
+ * -------------------------------------------------------
+ * Version 1.8.1 2026/10/18 Sunday
+ * 機能追加
+ *   ・カテゴリを保持するクラス変数(categoryMap)を廃止し、
+ *     ビルドごとの CategoryCollector に集約するように変更。
+ *     ワーカー(スレッド)ごとに登録しておき、最後に 1 度だけ
+ *     ページの並び順でマージする。
+ * -------------------------------------------------------
+ * Version 1.9.0 2026/10/18 Sunday
+ * 機能追加
+ *   ・差分ビルドの kotori モードを追加(パラメータは nozomi と
+ *     同じ)。ルートディレクトリのビルド管理ファイルに各ファイル
+ *     のサイズ・更新日時・チェックサム(CRC32C)・出力先・カテゴリ
+ *     と Maki のバージョンを保存し、変更のないファイルはビルド
+ *     しない。スキップしたファイルのカテゴリも出力する。
+ * -------------------------------------------------------
+ * Version 1.9.1 2026/10/18 Sunday
+ * 機能追加
+ *   ・差分ビルドで .. link:: の依存関係を管理するようにした。
+ *     リンク先のファイルと、そこから取得して埋め込んだ
+ *     @page_title, @page_outline をビルド管理ファイルに保存し、
+ *     リンク先のタイトルか概要が変わった場合だけリンク元の
+ *     ページを再ビルドする。
+ * -------------------------------------------------------
+ * Version 1.9.2 2026/10/18 Sunday
+ * 機能追加
+ *   ・.. link::、カテゴリ目次、目次の作成で同じファイルを何度も
+ *     読み込んでいたため、ページ情報(@page_title, @page_outline,
+ *     見出し1)のキャッシュを追加。パスをキーに更新日時で有効性
+ *     を確認する。タイトルと概要だけが必要な場合は両方見つかった
+ *     時点で読み込みを終了する。
+ *   ・上記に伴い、アノテーションが複数ある場合は最初のものを
+ *     使用するように変更。
+ * -------------------------------------------------------
+ * Version 1.10.0 2026/10/18 Sunday
+ * 機能追加
+ *   ・カテゴリの中間ファイル(tmp_category.txt)をバイナリ形式の
+ *     サイトインデックス(tmp_category.idx)に変更。パスは文字列表に
+ *     1 度だけ格納し、カテゴリはドキュメント ID のリストで持つ。
+ *     タイトルと概要もビルド時に格納しておき、eli モードでは
+ *     メモリマップして読み込む。パスに ; や , を含む場合も正しく
+ *     扱えるようになった。
+ * -------------------------------------------------------
+ * Version 1.11.0 2026/10/18 Sunday
+ * 機能追加
+ *   ・watch モードを追加(パラメータは kotori と同じ)。kotori と
+ *     同様に差分ビルドして目次を作成した後、JVM を終了せずに
+ *     ルートディレクトリ配下(新しく作成されたディレクトリを含む)
+ *     の変更を監視する。短時間に続いた変更はまとめて処理し、
+ *     変更された .maki ファイルと、そのタイトルか概要を .. link::
+ *     で埋め込んでいるページだけを再ビルドする。タイトル・概要・
+ *     見出し1・カテゴリ・ファイル構成が変わった場合だけ目次
+ *     (index.maki.html)を作り直す。
+ * -------------------------------------------------------
+ * Version 1.11.1 2026/10/18 Sunday
+ * 機能追加
+ *   ・起動時に -Dmaki.stylesheet=external を指定すると、ページごと
+ *     にインラインで出力していたスタイルシートを、ルートディレクトリ
+ *     の maki.(チェックサム).css に 1 度だけ出力してリンクするように
+ *     した。(指定しない場合は従来どおりインラインで出力する)
+ *   ・ページの先頭と末尾の固定部分は UTF-8 のバイト列を 1 度だけ
+ *     作成しておき、そのまま書き出すように変更。
+ *   ・スタイルシートの出力方法を変えた場合は、kotori・watch でも
+ *     全ファイルを再ビルドするようにした。
+ * -------------------------------------------------------
+ * Version 1.12.0 2026/10/18 Sunday
+ * 機能追加
+ *   ・64MB 以上のファイル(-Dmaki.converter=stream を指定した場合は
+ *     すべてのファイル)は、全行を読み込まずに 1 行ずつ変換する
+ *     ようにした。見出しの判定は次の 1 行だけを先読みし、目次は
+ *     事前にバイト単位で走査して記録した見出しの位置から作成する。
+ *     ファイルの大きさに関わらずメモリ使用量は一定になる。
+ *     (テーブル・コードブロック・箇条書きはこれまでどおり
+ *     ブロックの終わりまで保持する)
+ * -------------------------------------------------------
+ * Version 1.12.1 2026/10/18 Sunday
+ * 機能追加
+ *   ・ページと目次の書き出しを BufferedWriter から、UTF-8 で
+ *     直接 FileChannel へ書き出す Utf8Output に変更。文字列は
+ *     スレッドごとに使い回すダイレクトバッファへエンコードし、
+ *     見出し・本文・箇条書き・テーブル・脚注のタグはバイト列の
+ *     定数をそのまま書き出す(文字列の連結をしない)。
+ * -------------------------------------------------------
+ * Version 1.12.2 2026/10/18 Sunday
+ * 機能追加
+ *   ・.maki ファイルの読み込みを BufferedReader から MappedLines
+ *     に変更(256KB 以上のファイルはメモリマップする)。改行位置は
+ *     バイト列のまま探し、ページ情報の抽出では一致した
+ *     アノテーションの行と目次に使う見出しの行だけ文字列にする。
+ *     br.ready() で読み込みを終えていたため、途中で読み込みが
+ *     止まる可能性があった問題も解消。
+ * -------------------------------------------------------
+ * Version 1.12.3 2026/10/18 Sunday
+ * 機能追加
+ *   ・読み込んだ行を 1 行ずつ String で保持していた backupList を、
+ *     全行を 1 つの char 配列と行の開始位置の int 配列で持つ
+ *     LineStore に変更。行の種別と見出しレベルの索引も byte 配列に
+ *     した。目次と索引の作成は文字列を作らずに先頭の文字だけを
+ *     参照する。
+ * -------------------------------------------------------
+ * Version 1.13.0 2026/10/18 Sunday
+ * 機能追加
+ *   ・行の解析と HTML の書き出しを分離。解析処理は見出し・段落・
+ *     箇条書き・テーブル・コード・引用・注記・画像・リンク・脚注の
+ *     ブロック要素からなる文書木(Document)を作成し、HtmlRenderer が
+ *     文書木をたどって書き出す。行中の装飾は解析時に変換済みの
+ *     文字列として保持する。
+ *   ・1 行ずつ変換する場合は、確定したブロック要素をその都度
+ *     書き出して文書木から外す。
+ * -------------------------------------------------------
+ * Version 1.14.0 2026/10/18 Sunday
+ * 機能追加
+ *   ・他のプログラムへ組み込むための Maki.render(Reader, Writer, Options)
+ *     を追加。複数のスレッドから同時に呼び出せる。解析用のインスタンスと
+ *     読み込みバッファ・行ストア・索引の配列はスレッドごとに使い回す。
+ *   ・ページの書き出し先を PageOutput として抽象化し、ファイルへの
+ *     Utf8Output と呼び出し元の Writer への WriterOutput を用意した。
+ *   ・.. link:: のリンク先のルートディレクトリはインスタンスごとに持つ。
+ * -------------------------------------------------------
+ * Version 1.14.1 2026/10/18 Sunday
+ * 機能追加
+ *   ・static だったルートディレクトリと、ビルド全体で共有していた
+ *     カテゴリの集約先・差分ビルドの管理情報・並列数を BuildContext に
+ *     まとめ、各ページのインスタンスへ引き継ぐようにした。
+ *     ルートディレクトリは main ではなくコンストラクタで起動パラメータ
+ *     から取得するため、同じ JVM で複数のサイトを同時にビルドできる。
+ * -------------------------------------------------------
+ * Version 1.15.0 2026/10/18 Sunday
+ * 機能追加
+ *   ・並列数を指定した全ファイルビルドを、ディレクトリの走査 →
+ *     読み込み(先読み) → 変換 → 書き出しの段を大きさに上限のある
+ *     キューでつないだパイプラインに変更。読み込みと書き出しは I/O 用の
+ *     スレッドで行い、変換段(並列数のスレッド)の処理と重ねる。
+ *     ForkJoin による並列ビルド(TreeTask)は廃止した。
+ * -------------------------------------------------------
+ * Version 1.15.1 2026/10/18 Sunday
+ * 機能追加
+ *   ・ディレクトリの走査を Files.walkFileTree による DirListing に変更。
+ *     要素の名前と種別を 1 回の走査で集め、ディレクトリの更新日時を
+ *     キーにキャッシュする。全ファイルビルド・目次作成・カテゴリの
+ *     収集で共有し、目次用の名前順の並びも一覧ごとに 1 度だけ作成する。
+ *     キャッシュは件数に上限を設け、古く参照されたものから破棄する。
+ * -------------------------------------------------------
+ * Version 1.15.2 2026/10/18 Sunday
+ * 機能追加
+ *   ・ELI モードの目次作成で、ページの見出しの抽出をディレクトリ
+ *     ごとに並列に行うようにした。書き出しはディレクトリの名前順に
+ *     抽出の終わりを待ってつなぐため、出力は逐次処理と同じになる。
+ * -------------------------------------------------------
+ * Version 1.16.0 2026/10/18 Sunday
+ * 機能追加
+ *   ・全ビルドと目次作成を 1 回で行う HONOKA モードを追加。
+ *     ディレクトリを 1 度たどって各ページを変換し、変換で読み込んだ
+ *     内容から目次用の見出しとタイトル・概要を取得してメモリ上に
+ *     覚えておく. カテゴリもサイトインデックスをメモリ上に作成して
+ *     目次を出力するため、入力ファイルを 2 度読み込まない。
+ *     (サイトインデックスは単独の ELI モード用に出力しておく)
+ * -------------------------------------------------------
+ * Version 1.16.1 2026/10/18 Sunday
+ * 機能追加
+ *   ・ページの上部の目次の見出しを、本文の解析と同じ走査で集める
+ *     ようにした(目次のためだけの全行の走査をなくした)。
+ *   ・1 行ずつ変換する場合は、本文をセグメントバッファへ書き出し
+ *     ながら目次の見出しを集め、最後に目次を本文の前へ書き出して
+ *     から本文をつなぐようにした。見出しの位置を記録するための
+ *     入力ファイルの事前の走査は不要になった。
+ * -------------------------------------------------------
+ * Version 1.17.0 2026/10/18 Sunday
+ * 機能追加
+ *   ・ディレクティブ(.. 名前::)は名前を 1 度だけ取り出し、事前に
+ *     作成した一覧から処理を振り分けるようにした(ディレクティブ
+ *     ごとに行を検索しない)。
+ *   ・独自のディレクティブを追加できるようにした。Maki.Directive の
+ *     実装クラスを META-INF/services/Maki$Directive に記述しておくと
+ *     ServiceLoader で読み込む。組み込みのディレクティブと同じ名前の
+ *     ものは使用しない。
+ * -------------------------------------------------------
+ * Version 1.18.0 2026/10/18 Sunday
+ * 機能追加
+ *   ・1 行の解析を、行の先頭の文字による振り分けと、ブロックの状態
+ *     (段落、箇条書き、コードブロック、引用ブロック)で行うようにした。
+ *     ブロック要素は状態が変わる場合だけ文書木へ追加するため、空の
+ *     箇条書き(<ul class="left_indent"></ul>)を出力しなくなった。
+ *   ・コード・引用ブロックの中の行は、行中の変換をしないようにした。
+ * 不具合修正
+ *   ・コードブロックの中の * と $ を含む行で、脚注が作成されていたのを修正。
  *
  * @author tomohiko37_i
- * @version 1.7.2
+ * @version 1.18.0
  */
 public class Maki {
 
@@ -417,6 +687,53 @@ public class Maki {
      */
     private static final String MODE_ELI    = "eli";
 
+    /**
+     * モード: 差分ビルド KOTORI.
+     * 前回のビルドから変更されたファイルだけをビルドする.
+     */
+    private static final String MODE_KOTORI = "kotori";
+
+    /**
+     * モード: 監視 WATCH.
+     * 差分ビルドの後、変更を監視して再ビルドし続ける.
+     */
+    private static final String MODE_WATCH = "watch";
+
+    /**
+     * モード: 全ビルドと目次作成 HONOKA.
+     * NOZOMI と ELI を 1 回で行い、目次はビルド中に覚えたページ情報から作成する.
+     */
+    private static final String MODE_HONOKA = "honoka";
+
+    /**
+     * 監視モードで変更をまとめる待ち時間(ミリ秒).
+     * この時間だけ新しい変更がなければ再ビルドする.
+     */
+    private static final long WATCH_DEBOUNCE_MILLIS = 20;
+
+    /**
+     * 1 行ずつ読み込みながら変換するかどうか.
+     * 起動時に -Dmaki.converter=stream を指定した場合はファイルの大きさに関わらず
+     * 1 行ずつ変換する.
+     */
+    private static final boolean STREAMING_CONVERTER = "stream".equals(System.getProperty("maki.converter"));
+
+    /**
+     * 1 行ずつ読み込みながら変換するファイルの大きさ(バイト).
+     * これ以上の大きさのファイルは全部読み込まずに変換する.
+     */
+    private static final long STREAMING_THRESHOLD = 64L * 1024 * 1024;
+
+    /**
+     * 差分ビルドの管理ファイル名(ルートディレクトリに出力する).
+     */
+    private static final String MANIFEST_FILE_NAME = "tmp_manifest.txt";
+
+    /**
+     * カテゴリのサイトインデックスのファイル名(ルートディレクトリに出力する).
+     */
+    private static final String SITE_INDEX_FILE_NAME = "tmp_category.idx";
+
     /**
      * 起動パラメータの順序: モード.
      */
@@ -437,6 +754,11 @@ public class Maki {
      */
     private static final int PARAM_NUM_ROOT_DIR = 2;
 
+    /**
+     * 起動パラメータの順序: 並列数(NOZOMI モードのみ).
+     */
+    private static final int PARAM_NUM_WORKERS  = 3;
+
     /**
      * 箇条書きリスト.
      */
@@ -445,7 +767,27 @@ public class Maki {
     /**
      * 書き出し用のバッファ.
      */
-    private BufferedWriter bw = null;
+    private Utf8Output bw = null;
+
+    /**
+     * 解析中のページの文書木.
+     */
+    private Document document = null;
+
+    /**
+     * .. link:: のリンク先のパスの前に付けるルートディレクトリ.
+     */
+    private String linkRoot = "";
+
+    /**
+     * 埋め込み用の入力の読み込みバッファ(呼び出しごとに使い回す).
+     */
+    private final char[] readBuffer = new char[8192];
+
+    /**
+     * 埋め込み用の出力先(呼び出しごとに使い回す).
+     */
+    private final WriterOutput writerOutput = new WriterOutput();
 
     /**
      * 見出しの文字列を一時的に格納するテンポラリ.
@@ -458,9 +800,30 @@ public class Maki {
     private static final String CONST_CRLF = "\n";
 
     /**
-     * ブロックの範囲内かどうか判定するフラグ.
+     * ブロックの状態: 段落(開いているブロック要素なし).
+     */
+    private static final int BLOCK_PARAGRAPH = 0;
+
+    /**
+     * ブロックの状態: 箇条書き.
+     */
+    private static final int BLOCK_LIST = 1;
+
+    /**
+     * ブロックの状態: コードブロック.
      */
-    private boolean blockZoneFlg = false;
+    private static final int BLOCK_CODE = 2;
+
+    /**
+     * ブロックの状態: 引用ブロック.
+     */
+    private static final int BLOCK_QUOTE = 3;
+
+    /**
+     * 解析中のブロックの状態(BLOCK_PARAGRAPH, BLOCK_LIST, BLOCK_CODE, BLOCK_QUOTE).
+     * テーブルは他のブロックと並行して書けるため tableStatus で別に持つ.
+     */
+    private int blockState = BLOCK_PARAGRAPH;
 
     /**
      * ブロック中の文字列を格納する.
@@ -470,7 +833,7 @@ public class Maki {
     /**
      * 現在の Maki のバージョン.
      */
-    private static final String CONST_VERSION = "1.7.2";
+    private static final String CONST_VERSION = "1.18.0";
 
     /**
      * タイトル(処理するファイル名).
@@ -499,14 +862,55 @@ public class Maki {
     private List<String> tableDataList = new ArrayList<String>();
 
     /**
-     * 読み込んだ行データをそのまますべて保存しておくリスト.
+     * 読み込んだ行データをそのまますべて保存しておく行ストア.
+     */
+    private LineStore backupList = new LineStore();
+
+    /**
+     * 行の種別: 空行.
+     */
+    private static final int LINE_ROLE_BLANK     = 0;
+
+    /**
+     * 行の種別: 本文.
+     */
+    private static final int LINE_ROLE_PARAGRAPH = 1;
+
+    /**
+     * 行の種別: 見出し(次行が =, -, ~ の行).
+     */
+    private static final int LINE_ROLE_TITLE     = 2;
+
+    /**
+     * 行の種別: 見出しの下線(=, -, ~ で始まる行).
+     */
+    private static final int LINE_ROLE_UNDERLINE = 3;
+
+    /**
+     * 行の種別: ディレクティブ(. で始まる行).
+     */
+    private static final int LINE_ROLE_DIRECTIVE = 4;
+
+    /**
+     * 行の種別: その他(アノテーション・箇条書き・テーブル・字下げ行).
      */
-    private List<String> backupList = new ArrayList<>();
+    private static final int LINE_ROLE_OTHER     = 5;
+
+    /**
+     * backupList の行番号ごとの種別.
+     */
+    private byte[] lineRoles = new byte[0];
+
+    /**
+     * backupList の行番号ごとの所属する見出しレベル.
+     * 0 なら見出しの配下ではない.
+     */
+    private byte[] lineHeadingLevels = new byte[0];
 
     /**
      * シンタックスハイライトの対象(Java).
      */
-    private String[] syntaxHighlighting4J = {  "@param",  "@return", "@author",    "@version", "public ",
+    private static final String[] syntaxHighlighting4J = {  "@param",  "@return", "@author",    "@version", "public ",
                                                "private ", "protected ",  "void ",   "return",
                                                "final ",  "this",    "super",      "if ",     "else ",
                                                "for ",    "while ",   "switch ",     "try ",    "catch ",
@@ -516,17 +920,40 @@ public class Maki {
                                                "throws ",  "throw ",  "boolean ", "package", "import"};
 
     /**
-     * テーブル生成のための状況.
-     *  0: 未作成
-     *  1: ヘッダ
-     *  2: データ
+     * シンタックスハイライトの予約語の照合器(Java).
+     * JVM で 1 度だけ構築し、全インスタンスで共有する.
+     */
+    private static final KeywordMatcher SYNTAX_MATCHER_4J = new KeywordMatcher(syntaxHighlighting4J);
+
+    /**
+     * シンタックスハイライトの開始タグ.
+     */
+    private static final String SYNTAX_START_TAG = "<span style=\"color: #B92A2C;\">";
+
+    /**
+     * シンタックスハイライトの終了タグ.
+     */
+    private static final String SYNTAX_END_TAG = "</span>";
+
+    /**
+     * テーブル生成のための状況: 未作成.
+     */
+    private static final int TABLE_NONE = 0;
+
+    /**
+     * テーブル生成のための状況: ヘッダ.
+     */
+    private static final int TABLE_HEADER = 1;
+
+    /**
+     * テーブル生成のための状況: データ.
      */
-    private int tableStatus = 0;
+    private static final int TABLE_BODY = 2;
 
     /**
-     * ブロックがコードブロックかどうか.
+     * テーブル生成のための状況(TABLE_NONE, TABLE_HEADER, TABLE_BODY).
      */
-    private boolean isCodeBlock = true;
+    private int tableStatus = TABLE_NONE;
 
     /**
      * 見出し1のカウント.
@@ -543,27 +970,16 @@ public class Maki {
      */
     private int h3Cnt = 0;
 
-    /**
-     * ルートディレクトリ.
-     */
-    private static String rootDir = "";
-
     /**
      * 定数:ログ出力:OFF.
      */
-    private static String LOG_LEVEL_OFF = "off";
+    private static final String LOG_LEVEL_OFF = "off";
 
     /**
      * ログ出力制御の定数.
      * ログを出力したいときはここを on にすること.
      */
-    private static String LOG_OUTPUT = "off";
-
-    /**
-     * 各ページに書かれたカテゴリを保持するマップ。
-     * クラス変数にしている点に注意。
-     */
-    private static Map<String, List<String>> categoryMap = new TreeMap<>();
+    private static final String LOG_OUTPUT = "off";
 
     /**
      * 読み込むファイルのパス.
@@ -571,48 +987,176 @@ public class Maki {
      */
     private String inputFilePath  = "";
 
+    /**
+     * このページに書かれたカテゴリ.
+     * ページの変換が終わった後で categoryCollector へ登録する.
+     */
+    private List<String> pageCategories = new ArrayList<>();
+
+    /**
+     * このページの .. link:: で埋め込んだリンク先.
+     * 差分ビルドの依存関係として使用する.
+     */
+    private List<LinkDependency> pageLinks = new ArrayList<>();
+
+    /**
+     * ビルドの状態.
+     * 全ファイルビルドの場合は各ページで共有する.
+     */
+    private final BuildContext context;
+
+    /**
+     * ビルド内でのページの並び順(ツリーをたどる順の添字の並び).
+     */
+    private int[] documentOrder = new int[0];
+
     /**
      * 簡易的な Sphinx ジェネレータ.
      *
      * @param args 起動パラメータ
      */
     public static void main(final String[] args) {
-        if (args.length == 3) {
-            // パラメータ3個なので NOZOMI モード
-            rootDir = args[PARAM_NUM_ROOT_DIR]; // 目次ファイル用
-        }
-        new Maki(args);
+        Maki maki = new Maki(args);
 
         // 最後にここへ来るため、
         // ここでカテゴリ・マップを
-        // ファイルに出力しておく
-        if (!args[0].equals("eli")) {
-            try (FileOutputStream fos = new FileOutputStream(new File(rootDir + "/tmp_category.txt"));
-                 OutputStreamWriter osw = new OutputStreamWriter(fos, "utf-8");
-                 BufferedWriter bw = new BufferedWriter(osw);) {
+        // サイトインデックスに出力しておく
+        // (HONOKA モードは目次の作成前に出力済み)
+        if (!args[0].equals("eli") && !args[0].equals(MODE_WATCH) && !args[0].equals(MODE_HONOKA)) {
+            try {
+                SiteIndex.write(new File(maki.context.rootDir + "/" + SITE_INDEX_FILE_NAME),
+                                maki.context.categoryCollector.merge());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * スレッドごとの使い回す埋め込み用インスタンス.
+     */
+    private static final ThreadLocal<Maki> RENDERERS = new ThreadLocal<Maki>() {
+        @Override
+        protected Maki initialValue() {
+            return new Maki();
+        }
+    };
+
+    /**
+     * 埋め込み用の変換オプション.
+     * 変換中は変更しないこと.
+     */
+    public static final class Options {
+
+        /**
+         * タイトル.
+         */
+        private String title = "";
+
+        /**
+         * ページの上部の「top」のリンク先(目次ファイル).
+         */
+        private String tocHref = "index.maki.html";
+
+        /**
+         * 外部スタイルシートの参照先. null ならページに埋め込む.
+         */
+        private String stylesheetHref = null;
+
+        /**
+         * .. link:: のリンク先のパスの前に付けるルートディレクトリ.
+         */
+        private String linkRoot = "";
+
+        /**
+         * タイトルを設定する.
+         * @param title タイトル
+         * @return このオプション
+         */
+        public Options setTitle(final String title) {
+            this.title = title;
+            return this;
+        }
 
-               Iterator<String> iter = categoryMap.keySet().iterator();
-               while (iter.hasNext()) {
-                   StringBuilder sb = new StringBuilder();
-                   String key = iter.next();
+        /**
+         * ページの上部の「top」のリンク先を設定する.
+         * @param tocHref 目次ファイルのパス
+         * @return このオプション
+         */
+        public Options setTocHref(final String tocHref) {
+            this.tocHref = tocHref;
+            return this;
+        }
+
+        /**
+         * 外部スタイルシートの参照先を設定する.
+         * @param stylesheetHref 参照先. null ならページに埋め込む.
+         * @return このオプション
+         */
+        public Options setStylesheetHref(final String stylesheetHref) {
+            this.stylesheetHref = stylesheetHref;
+            return this;
+        }
+
+        /**
+         * .. link:: のリンク先のルートディレクトリを設定する.
+         * @param linkRoot ルートディレクトリ
+         * @return このオプション
+         */
+        public Options setLinkRoot(final String linkRoot) {
+            this.linkRoot = linkRoot;
+            return this;
+        }
+    }
 
-                   sb.append(key);
-                   sb.append(";");
-                   List<String> paths = categoryMap.get(key);
-                   int cnt = 0;
-                   for (String path : paths) {
-                       sb.append(path);
-                       if (cnt != (paths.size() - 1)) {
-                           sb.append(",");
-                       }
-                   }
-                   bw.write(sb.toString() + "\n");
-               }
+    /**
+     * 独自のディレクティブ(.. 名前:: 引数).
+     * 実装クラスを META-INF/services/Maki$Directive に記述しておくと、起動時に
+     * ServiceLoader で読み込み、組み込みのディレクティブと同じように振り分ける.
+     * 組み込みのディレクティブと同じ名前のものは使用しない.
+     * 複数のスレッドから同時に呼び出されるため、状態を持たないこと.
+     */
+    public interface Directive {
+
+        /**
+         * ディレクティブ名を取得する.
+         * @return ディレクティブ名(.. と :: の間の文字列)
+         */
+        String name();
+
+        /**
+         * ディレクティブの行を HTML に変換する.
+         * @param argument 引数(:: の後ろの文字列). HTML のタグはエスケープ済み.
+         * @return 本文のその位置へそのまま出力する HTML
+         */
+        String toHtml(String argument);
+    }
 
-               bw.flush();
-           } catch (IOException e) {
-               e.printStackTrace();
-           }
+    /**
+     * Maki 形式の文書を HTML に変換する(埋め込み用).
+     * 複数のスレッドから同時に呼び出せる. 解析用のバッファはスレッドごとに
+     * 使い回すため、繰り返し呼び出しても出力以外はほとんど生成しない.
+     * 入力・出力とも閉じない.
+     *
+     * @param in 入力(Maki 形式の文書)
+     * @param out 出力(HTML)
+     * @param options 変換オプション
+     * @throws IOException 読み込み・書き込み時の例外
+     */
+    public static void render(final Reader in, final Writer out, final Options options) throws IOException {
+        Maki maki = RENDERERS.get();
+        maki.reset(options);
+        try {
+            maki.readLines(in);
+            maki.parse();
+            maki.writerOutput.target(out);
+            new HtmlRenderer(maki.writerOutput, options.tocHref, options.stylesheetHref).render(maki.document);
+            maki.writerOutput.flush();
+        } finally {
+            // 次の呼び出しまで入力と出力を保持しない
+            maki.writerOutput.target(null);
+            maki.document = null;
+            maki.backupList.clear();
         }
     }
 
@@ -622,9 +1166,148 @@ public class Maki {
      * @param args 起動パラメータ
      */
     public Maki(final String[] args) {
+        // パラメータ3個以上の場合はルートディレクトリの指定がある(目次ファイル用)
+        this.context = new BuildContext(args.length >= 3 ? args[PARAM_NUM_ROOT_DIR] : "");
+        this.execute(args);
+    }
+
+    /**
+     * コンストラクタ(全ファイルビルド用).
+     *
+     * @param args 起動パラメータ
+     * @param context ビルドの状態
+     * @param documentOrder ビルド内でのページの並び順
+     */
+    private Maki(final String[] args,
+                 final BuildContext context,
+                 final int[] documentOrder) {
+        this(context, documentOrder);
         this.execute(args);
     }
 
+    /**
+     * コンストラクタ(全ファイルビルドのパイプライン用).
+     * 変換はパイプラインの変換段から行う.
+     *
+     * @param context ビルドの状態
+     * @param documentOrder ビルド内でのページの並び順
+     */
+    private Maki(final BuildContext context,
+                 final int[] documentOrder) {
+        this.context = context;
+        this.documentOrder = documentOrder;
+        this.tocFilePath = context.rootDir + "/index.maki.html";
+        this.linkRoot = context.rootDir;
+    }
+
+    /**
+     * コンストラクタ(埋め込み用).
+     * 変換は render から行う.
+     */
+    private Maki() {
+        this.context = new BuildContext("");
+    }
+
+    /**
+     * ビルドの状態.
+     * 1 つのルートディレクトリのビルドの間だけ保持し、各ページのインスタンスへ
+     * 引き継ぐ. ビルドごとに別のインスタンスとするため、同じ JVM で複数の
+     * サイトを同時にビルドしても互いに干渉しない.
+     */
+    private static final class BuildContext {
+
+        /**
+         * ルートディレクトリ.
+         */
+        private final String rootDir;
+
+        /**
+         * 各ページに書かれたカテゴリの集約先.
+         */
+        private final CategoryCollector categoryCollector = new CategoryCollector();
+
+        /**
+         * 差分ビルドの管理情報. 差分ビルドでなければ null.
+         */
+        private BuildManifest manifest = null;
+
+        /**
+         * 全ファイルビルドの並列数. 1 なら逐次ビルド.
+         */
+        private int workers = 1;
+
+        /**
+         * ビルドしたページの目次用の情報(入力パスがキー).
+         * 全ビルドと目次作成を同時に行う場合だけ集め、それ以外は null.
+         */
+        private Map<String, PageMeta> pages = null;
+
+        /**
+         * コンストラクタ.
+         * @param rootDir ルートディレクトリ
+         */
+        BuildContext(final String rootDir) {
+            this.rootDir = rootDir;
+        }
+    }
+
+    /**
+     * 埋め込み用の変換の前に、前回の変換の状態を初期化する.
+     * @param options 変換オプション
+     */
+    private void reset(final Options options) {
+        this.itemList = new ArrayList<Object>();
+        this.tempStr = null;
+        this.blockState = BLOCK_PARAGRAPH;
+        this.blockList = new ArrayList<String>();
+        this.title = options.title;
+        this.footNoteList = new ArrayList<String>();
+        this.footNoteCount = 0;
+        this.tableHeader = "";
+        this.tableDataList = new ArrayList<String>();
+        this.backupList.clear();
+        this.tableStatus = TABLE_NONE;
+        this.h1Cnt = 0;
+        this.h2Cnt = 0;
+        this.h3Cnt = 0;
+        this.pageCategories.clear();
+        this.pageLinks.clear();
+        this.linkRoot = options.linkRoot;
+        this.document = new Document(options.title);
+    }
+
+    /**
+     * 入力を行に分けて backupList へ保持する.
+     * 改行は BufferedReader#readLine と同じく \n, \r, \r\n のいずれかとする.
+     * 行ごとの文字列は作らず、読み込み用のバッファから行ストアへ直接コピーする.
+     * @param in 入力
+     * @throws IOException 読み込み時の例外
+     */
+    private void readLines(final Reader in) throws IOException {
+        char[] buf = this.readBuffer;
+        boolean skipLF = false;
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) != -1) {
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                char c = buf[i];
+                if (c == '\n' && skipLF) {
+                    // \r\n の \n
+                    start = i + 1;
+                } else if (c == '\n' || c == '\r') {
+                    this.backupList.appendEscaped(buf, start, i - start);
+                    this.backupList.endLine();
+                    start = i + 1;
+                }
+                skipLF = c == '\r';
+            }
+            this.backupList.appendEscaped(buf, start, n - start);
+        }
+        if (this.backupList.hasOpenLine()) {
+            this.backupList.endLine();
+        }
+    }
+
     /**
      * 主処理.
      *
@@ -657,6 +1340,14 @@ public class Maki {
             this.log("number of parameters: 3");
             inputFilePath  = args[PARAM_NUM_IN_FILE];   // 1番目
             outputFilePath = args[PARAM_NUM_OUT_FILE];  // 2番目
+        } else if (args.length == 4
+                && (MODE_NOZOMI.equals(mode) || MODE_KOTORI.equals(mode) || MODE_WATCH.equals(mode)
+                    || MODE_HONOKA.equals(mode))) {
+            // NOZOMI, KOTORI, WATCH, HONOKA モードで並列数が指定された場合
+            this.log("number of parameters: 4");
+            inputFilePath  = args[PARAM_NUM_IN_FILE];   // 1番目
+            outputFilePath = args[PARAM_NUM_OUT_FILE];  // 2番目
+            this.context.workers   = this.parseWorkers(args[PARAM_NUM_WORKERS]); // 3番目
         } else {
             // ここに来るのはパラメータの数が多すぎる場合
             this.log("指定されたパラメータの数が多すぎます。");
@@ -668,7 +1359,8 @@ public class Maki {
         // tocFilePath は各ページの最上部にある「top」の
         // クリック時に戻る目次ファイルとして使用している
         // 目次ファイル出力先にも使用するように修正した
-        this.tocFilePath = rootDir + "/index.maki.html";
+        this.tocFilePath = this.context.rootDir + "/index.maki.html";
+        this.linkRoot = this.context.rootDir;
 
         this.log("inputFilePath: [" + inputFilePath    + "]");
         this.log("outputFilePath:[" + outputFilePath   + "]");
@@ -676,12 +1368,63 @@ public class Maki {
 
         // ELI, NOZOMI の両方のモードを同時に実行すべき
         // (目次を出力しない場合なんかないので)
+        // → 両方を 1 回で行う HONOKA モードを追加した
         if (MODE_NOZOMI.equals(mode)) {
             // NOZOMI モードの場合
             this.log("NOZOMI MODE... allFileBuild start");
             // 処理の実行
             this.allFileBuild(inDirPath);
             return;
+        } else if (MODE_KOTORI.equals(mode)) {
+            // KOTORI モードの場合
+            this.log("KOTORI MODE... allFileBuild start");
+            // 前回のビルド管理ファイルを読み込んで差分ビルドする
+            File manifestFile = new File(this.context.rootDir + "/" + MANIFEST_FILE_NAME);
+            this.context.manifest = BuildManifest.load(manifestFile, this.context.rootDir);
+            this.allFileBuild(inDirPath);
+            this.context.manifest.save(manifestFile);
+            return;
+        } else if (MODE_WATCH.equals(mode)) {
+            // WATCH モードの場合
+            this.log("WATCH MODE... allFileBuild start");
+            // KOTORI モードと同じく差分ビルドして目次を作成し、
+            // その後は変更を監視して再ビルドする
+            File manifestFile = new File(this.context.rootDir + "/" + MANIFEST_FILE_NAME);
+            this.context.manifest = BuildManifest.load(manifestFile, this.context.rootDir);
+            this.allFileBuild(inDirPath);
+            this.context.manifest.save(manifestFile);
+            this.context.categoryCollector.clear();
+            this.writeIndex(inDirPath);
+            try {
+                this.watch(inDirPath, manifestFile);
+            } catch (IOException e) {
+                this.log(e.getMessage());
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                this.log("WATCH MODE... interrupted");
+                Thread.currentThread().interrupt();
+            }
+            this.log("execute --- WATCH MODE END");
+            return;
+        } else if (MODE_HONOKA.equals(mode)) {
+            // HONOKA モードの場合
+            this.log("HONOKA MODE... allFileBuild and createIndex start");
+            // ビルドしたページの見出しとカテゴリをメモリ上に覚えておき、
+            // 目次の作成で入力ファイルもサイトインデックスも読み込み直さない
+            this.context.pages = new ConcurrentHashMap<>();
+            this.allFileBuild(inDirPath);
+            SiteIndex index = null;
+            try {
+                index = SiteIndex.build(this.context.categoryCollector.merge(), this.context.pages);
+                // 単独の ELI モードのためにサイトインデックスも出力しておく
+                index.save(new File(this.context.rootDir + "/" + SITE_INDEX_FILE_NAME));
+            } catch (IOException e) {
+                this.log(e.getMessage());
+                e.printStackTrace();
+            }
+            this.createIndex(this.context.rootDir, index);
+            this.log("execute --- HONOKA MODE END");
+            return;
         } else if (MODE_ELI.equals(mode)) {
             // ELI モードの場合
             this.log("ELI MODE... createIndex start");
@@ -698,50 +1441,26 @@ public class Maki {
         File file = new File(inputFilePath);
         this.title = file.getName();
         this.log("★" + file.getName());
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(
-                new FileInputStream(file), "utf-8"));) {
+        try {
+            // 読み込むファイルをメモリマップしておく
+            // (大きなファイルは 1 行ずつ変換するため読み込まない)
+            MappedLines lines = null;
+            if (!STREAMING_CONVERTER && file.length() < STREAMING_THRESHOLD) {
+                lines = MappedLines.open(file);
+            }
 
             // 書き出すファイルの準備(UTF-8で出力する)
-            this.bw = new BufferedWriter(new OutputStreamWriter(
-                      new FileOutputStream(new File(outputFilePath)), "utf-8"));
+            this.bw = new Utf8Output(new File(outputFilePath));
 
-            // 初期処理
-            this.initWrite();
+            // 変換処理
+            this.convert(file, lines, outputFilePath);
 
-            // 事前に全部読み込んでリストへ保持
-            // これで過去に振り替えることができる
-            while (br.ready()) {
-                String line = br.readLine();
-                line = this.escapeHtml(line);
-                this.backupList.add(line);
-            }
+            // ファイルのクローズ
+            this.bw.flush();
+            this.bw.close();
 
-            // 目次出力処理
-            this.createTOC();
-
-            // 編集処理
-            for (String line : this.backupList) {
-                //System.out.println(line);
-                // 編集と書き出し
-                this.editAndWrite(this.editLine(line), line);
-            }
-
-            // 最終行の書き込み
-            this.itemListWrite();
-            if (this.tableStatus == 2) {
-                // テーブルが終わった
-                this.tableWrite();
-                this.tableStatus = 0;
-            }
-
-            // 終了処理
-            this.blockWrite();
-            this.footNoteWrite();
-            this.finalWrite();
-
-            // ファイルのクローズ
-            this.bw.flush();
-            this.bw.close();
+            // 目次用の情報を覚えておく(HONOKA モードの場合)
+            this.recordPage(file, lines);
 
         } catch (FileNotFoundException e) {
             this.log(e.getMessage());
@@ -750,9 +1469,200 @@ public class Maki {
             this.log(e.getMessage());
             e.printStackTrace();
         }
+
+        // ページに書かれていたカテゴリを登録する
+        this.context.categoryCollector.record(this.documentOrder, this.inputFilePath, this.pageCategories);
         this.log("execute --- OTHER MODE END");
     }
 
+    /**
+     * 1 ページの変換. 書き出し先(bw)は呼び出し元で用意しておく.
+     * @param file 入力ファイル
+     * @param lines 読み込んだ入力ファイル. null の場合は 1 行ずつ変換する.
+     * @param outputFilePath 出力ファイルのパス
+     * @throws IOException 読み込み・書き込み時の例外
+     */
+    private void convert(final File file, final MappedLines lines, final String outputFilePath) throws IOException {
+        // スタイルシートを外部ファイルにする場合は出力しておく
+        if (EXTERNAL_STYLESHEET) {
+            try {
+                this.stylesheetHref = writeStylesheet(this.context.rootDir, new File(outputFilePath));
+            } catch (IOException e) {
+                this.log(e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        // 解析した文書木を書き出す
+        this.document = new Document(this.title);
+        HtmlRenderer renderer = new HtmlRenderer(this.bw, this.tocFilePath, this.stylesheetHref);
+
+        if (lines == null) {
+            // 大きなファイルは全部読み込まずに 1 行ずつ変換する
+            this.log("streaming convert: [" + file.length() + "] bytes");
+            this.streamConvert(file, renderer);
+        } else {
+            // 事前に全部読み込んでリストへ保持
+            // これで過去に振り替えることができる
+            while (lines.next()) {
+                String line = lines.text();
+                line = this.escapeHtml(line);
+                this.backupList.add(line);
+            }
+
+            // 解析処理
+            this.parse();
+
+            // 書き出し処理
+            renderer.render(this.document);
+        }
+    }
+
+    /**
+     * 全ビルドと目次作成を同時に行う場合、変換したページの目次用の情報を覚えておく.
+     * 変換で読み込んだ内容から取得するため、入力ファイルは読み込み直さない.
+     * 1 行ずつ変換した大きなファイルは覚えず、目次の作成時に読み込む.
+     * @param file 入力ファイル
+     * @param lines 読み込んだ入力ファイル. 1 行ずつ変換した場合は null.
+     */
+    private void recordPage(final File file, final MappedLines lines) {
+        if (this.context.pages == null || lines == null) {
+            return;
+        }
+        lines.rewind();
+        this.context.pages.put(file.getPath(), PageMeta.scan(lines, file.lastModified(), file.length(), true));
+    }
+
+    /**
+     * 並列数のパラメータを解析する.
+     * 0 以下の場合は CPU 数とする.
+     * @param param 起動パラメータ
+     * @return 並列数
+     */
+    private int parseWorkers(final String param) {
+        try {
+            int num = Integer.parseInt(param.trim());
+            if (num <= 0) {
+                return Runtime.getRuntime().availableProcessors();
+            }
+            return num;
+        } catch (NumberFormatException e) {
+            this.log("並列数の指定が不正なため逐次ビルドします: [" + param + "]");
+            return 1;
+        }
+    }
+
+    /**
+     * 各ページに書かれたカテゴリの集約.
+     * 並列ビルドでも競合しないよう、登録はスレッドごとのリストに
+     * 対して行い、最後に 1 度だけページの並び順でマージする.
+     */
+    private static final class CategoryCollector {
+
+        /**
+         * 全スレッドの登録先リスト.
+         */
+        private final Queue<List<CategoryEntry>> entryLists = new ConcurrentLinkedQueue<>();
+
+        /**
+         * スレッドごとの登録先リスト.
+         */
+        private final ThreadLocal<List<CategoryEntry>> localEntries = new ThreadLocal<List<CategoryEntry>>() {
+            @Override
+            protected List<CategoryEntry> initialValue() {
+                List<CategoryEntry> entries = new ArrayList<>();
+                CategoryCollector.this.entryLists.add(entries);
+                return entries;
+            }
+        };
+
+        /**
+         * ページに書かれていたカテゴリを登録する.
+         * @param order ページの並び順
+         * @param path ページのパス
+         * @param categories ページに書かれていたカテゴリ
+         */
+        void record(final int[] order, final String path, final List<String> categories) {
+            if (categories.isEmpty()) {
+                return;
+            }
+            this.localEntries.get().add(new CategoryEntry(order, path, categories));
+        }
+
+        /**
+         * 登録されたカテゴリを破棄する.
+         * ビルド中のワーカーがない状態で呼び出すこと.
+         */
+        void clear() {
+            for (List<CategoryEntry> list : this.entryLists) {
+                list.clear();
+            }
+        }
+
+        /**
+         * 登録されたカテゴリをマージする.
+         * カテゴリは自然順序、各カテゴリのページはビルドの並び順に並ぶ.
+         * @return カテゴリとページのパスのマップ
+         */
+        Map<String, List<String>> merge() {
+            List<CategoryEntry> entries = new ArrayList<>();
+            for (List<CategoryEntry> list : this.entryLists) {
+                entries.addAll(list);
+            }
+            entries.sort(new Comparator<CategoryEntry>() {
+                public int compare(CategoryEntry entry1, CategoryEntry entry2) {
+                    return Arrays.compare(entry1.order, entry2.order);
+                }
+            });
+
+            Map<String, List<String>> categoryMap = new TreeMap<>();
+            for (CategoryEntry entry : entries) {
+                for (String category : entry.categories) {
+                    List<String> categoryList = categoryMap.get(category);
+                    if (categoryList == null) {
+                        categoryList = new ArrayList<>();
+                        categoryMap.put(category, categoryList);
+                    }
+                    categoryList.add(entry.path);
+                }
+            }
+            return categoryMap;
+        }
+    }
+
+    /**
+     * 1 ページ分のカテゴリ.
+     */
+    private static final class CategoryEntry {
+
+        /**
+         * ページの並び順.
+         */
+        private final int[] order;
+
+        /**
+         * ページのパス.
+         */
+        private final String path;
+
+        /**
+         * ページに書かれていたカテゴリ.
+         */
+        private final List<String> categories;
+
+        /**
+         * コンストラクタ.
+         * @param order ページの並び順
+         * @param path ページのパス
+         * @param categories ページに書かれていたカテゴリ
+         */
+        CategoryEntry(final int[] order, final String path, final List<String> categories) {
+            this.order = order;
+            this.path = path;
+            this.categories = categories;
+        }
+    }
+
     /**
      * HTMLのタグをエスケープする処理.
      * @param line 1行の文字列
@@ -782,10 +1692,278 @@ public class Maki {
         }
     }
 
+    /**
+     * .. link:: で埋め込むリンク先のアノテーションを取得する.
+     * ※インスタンス変数の pageTitle, pageOutline は当該ページのもの
+     * @param file リンク先のファイル
+     * @return [0]: @page_title, [1]: @page_outline
+     * @throws IOException 読み込み時の例外
+     */
+    private static String[] readLinkAnnotation(final File file) throws IOException {
+        String linkTitle = "Linked page annotation(@page_title) is not set.";
+        String outline = "Linked page annotation(@page_outline) is not set.";
+
+        PageMeta meta = PageMetaCache.header(file);
+        if (meta.title != null) {
+            linkTitle = meta.title;
+        }
+        if (meta.outline != null) {
+            outline = meta.outline;
+        }
+        return new String[] {linkTitle, outline};
+    }
+
+    /**
+     * ページ情報のキャッシュ.
+     * .. link::、カテゴリ目次、目次の作成で同じファイルを何度も読み込まない
+     * ように、JVM 内で共有する. パスをキーとし、更新日時とサイズが変わって
+     * いれば読み込み直す. 件数が上限を超えた場合は最も古く参照されたものから
+     * 破棄する.
+     */
+    private static final class PageMetaCache {
+
+        /**
+         * キャッシュする件数の上限.
+         */
+        private static final int MAX_ENTRIES = 16384;
+
+        /**
+         * キャッシュ(パスがキー、参照順).
+         */
+        private static final Map<String, PageMeta> CACHE = new LinkedHashMap<String, PageMeta>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, PageMeta> eldest) {
+                return this.size() > MAX_ENTRIES;
+            }
+        };
+
+        /**
+         * インスタンス化しない.
+         */
+        private PageMetaCache() {
+        }
+
+        /**
+         * @page_title と @page_outline を取得する.
+         * @param file ページのファイル
+         * @return ページ情報
+         * @throws IOException 読み込み時の例外
+         */
+        static PageMeta header(final File file) throws IOException {
+            return get(file, false);
+        }
+
+        /**
+         * @page_title と @page_outline に加えて、目次用の見出し1も取得する.
+         * @param file ページのファイル
+         * @return ページ情報
+         * @throws IOException 読み込み時の例外
+         */
+        static PageMeta contents(final File file) throws IOException {
+            return get(file, true);
+        }
+
+        /**
+         * キャッシュされているページ情報を、有効かどうかを確認せずに取得する.
+         * @param file ページのファイル
+         * @return ページ情報. キャッシュされていない場合は null.
+         */
+        static PageMeta peek(final File file) {
+            synchronized (CACHE) {
+                return CACHE.get(file.getPath());
+            }
+        }
+
+        /**
+         * キャッシュからページ情報を取得する. 無効な場合は読み込む.
+         * @param file ページのファイル
+         * @param needContents 目次用の見出し1が必要な場合は true
+         * @return ページ情報
+         * @throws IOException 読み込み時の例外
+         */
+        private static PageMeta get(final File file, final boolean needContents) throws IOException {
+            String key = file.getPath();
+            long modified = file.lastModified();
+            long size = file.length();
+            PageMeta meta;
+            synchronized (CACHE) {
+                meta = CACHE.get(key);
+            }
+            if (meta != null && meta.modified == modified && meta.size == size
+                    && (!needContents || meta.contents != null)) {
+                return meta;
+            }
+
+            meta = PageMeta.read(file, modified, size, needContents);
+            synchronized (CACHE) {
+                CACHE.put(key, meta);
+            }
+            return meta;
+        }
+    }
+
+    /**
+     * ページ情報.
+     */
+    private static final class PageMeta {
+
+        /**
+         * 読み込んだ時点のファイルの更新日時.
+         */
+        private final long modified;
+
+        /**
+         * 読み込んだ時点のファイルのサイズ.
+         */
+        private final long size;
+
+        /**
+         * @page_title の値(加工なし). 設定されていなければ null.
+         */
+        private String title;
+
+        /**
+         * @page_outline の値(加工なし). 設定されていなければ null.
+         */
+        private String outline;
+
+        /**
+         * 目次用の見出し1([0]: 見出し, [1]: その時点の @page_outline).
+         * 読み込んでいなければ null.
+         */
+        private List<String[]> contents;
+
+        /**
+         * コンストラクタ.
+         * @param modified ファイルの更新日時
+         * @param size ファイルのサイズ
+         */
+        private PageMeta(final long modified, final long size) {
+            this.modified = modified;
+            this.size = size;
+        }
+
+        /**
+         * ファイルからページ情報を読み込む.
+         * 目次用の見出し1が不要な場合は、@page_title と @page_outline が
+         * 見つかった時点で読み込みを終了する.
+         * @param file ページのファイル
+         * @param modified ファイルの更新日時
+         * @param size ファイルのサイズ
+         * @param needContents 目次用の見出し1が必要な場合は true
+         * @return ページ情報
+         * @throws IOException 読み込み時の例外
+         */
+        static PageMeta read(final File file, final long modified, final long size,
+                             final boolean needContents) throws IOException {
+            return scan(MappedLines.open(file), modified, size, needContents);
+        }
+
+        /**
+         * 読み込み済みの内容からページ情報を取得する.
+         * @param lines 読み込んだファイル(現在位置から読む)
+         * @param modified ファイルの更新日時
+         * @param size ファイルのサイズ
+         * @param needContents 目次用の見出し1が必要な場合は true
+         * @return ページ情報
+         */
+        static PageMeta scan(final MappedLines lines, final long modified, final long size,
+                             final boolean needContents) {
+            PageMeta meta = new PageMeta(modified, size);
+            if (needContents) {
+                meta.contents = new ArrayList<>();
+            }
+            // 見出し1の文字列は、下線の行が見つかるまで位置だけを覚えておく
+            int tmpStart = -1;
+            int tmpEnd = -1;
+            String tmpOutline = "";
+            while (lines.next()) {
+                if (lines.contains(ANNOTATION_PAGE_TITLE)) {
+                    if (meta.title == null) {
+                        meta.title = annotationValue(lines.text());
+                    }
+                } else if (lines.contains(ANNOTATION_PAGE_OUTLINE)) {
+                    if (meta.outline == null) {
+                        meta.outline = annotationValue(lines.text());
+                    }
+                }
+                if (!needContents) {
+                    if (meta.title != null && meta.outline != null) {
+                        break;
+                    }
+                    continue;
+                }
+
+                // 目次用に見出し1を抽出する
+                int prefix = lines.first();
+                if (prefix == '=') {
+                    String tmpLine = tmpStart < 0 ? "" : lines.text(tmpStart, tmpEnd);
+                    meta.contents.add(new String[] {tmpLine, tmpOutline});
+                } else if (prefix == '@') {
+                    if (lines.contains(ANNOTATION_PAGE_OUTLINE)) {
+                        String value = annotationValue(lines.text());
+                        if (value != null) {
+                            tmpOutline = value.trim();
+                        }
+                    }
+                } else if (prefix != -1) {
+                    tmpStart = lines.start();
+                    tmpEnd = lines.end();
+                }
+            }
+            return meta;
+        }
+
+        /**
+         * 目次に出力する内容(タイトル、概要、見出し1)が同じかどうか.
+         * @param other 比較するページ情報
+         * @return 同じなら true. どちらかの見出し1が読み込まれていない場合は false.
+         */
+        boolean sameIndex(final PageMeta other) {
+            if (this.contents == null || other.contents == null
+                    || !Objects.equals(this.title, other.title)
+                    || !Objects.equals(this.outline, other.outline)
+                    || this.contents.size() != other.contents.size()) {
+                return false;
+            }
+            for (int i = 0; i < this.contents.size(); i++) {
+                if (!Arrays.equals(this.contents.get(i), other.contents.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * アノテーション @page_title.
+         */
+        private static final byte[] ANNOTATION_PAGE_TITLE = utf8("@page_title");
+
+        /**
+         * アノテーション @page_outline.
+         */
+        private static final byte[] ANNOTATION_PAGE_OUTLINE = utf8("@page_outline");
+
+        /**
+         * アノテーションの値(: の後ろ)を取得する.
+         * @param line アノテーションの行
+         * @return 値. 値がない場合は null.
+         */
+        private static String annotationValue(final String line) {
+            String[] tokens = line.split(":");
+            if (tokens.length < 2) {
+                return null;
+            }
+            return tokens[1];
+        }
+    }
+
     /**
      * 目次出力用ファイル.
      */
-    private BufferedWriter eli = null;
+    private Utf8Output eli = null;
 
     /**
      * 目次ファイルパス.
@@ -798,10 +1976,18 @@ public class Maki {
      * @param outDirPath 出力ディレクトリ
      */
     private void createIndex(final String inDirPath) {
+        this.createIndex(inDirPath, null);
+    }
+
+    /**
+     * 全ファイルの目次を作成する.
+     * @param inDirPath 入力ディレクトリ
+     * @param index カテゴリのサイトインデックス. null の場合はファイルから読み込む.
+     */
+    private void createIndex(final String inDirPath, final SiteIndex index) {
         File inputDirFile = new File(inDirPath);
         try {
-            this.eli = new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(new File(inDirPath + "/index.maki.html")), "utf-8"));
+            this.eli = new Utf8Output(new File(inDirPath + "/index.maki.html"));
 
             eli.write("<!DOCTYPE html>" + CONST_CRLF);
             eli.write("<html lang=\"ja\">" + CONST_CRLF);
@@ -836,7 +2022,11 @@ public class Maki {
 
             eli.write("  </ul>" + CONST_CRLF);
 
-            this.category(inDirPath);
+            if (index != null) {
+                this.category(index);
+            } else {
+                this.category(inDirPath);
+            }
 
             eli.write("</body>" + CONST_CRLF);
             eli.write("</html>" + CONST_CRLF);
@@ -863,1199 +2053,5105 @@ public class Maki {
 
     /**
      * 目次作成処理.
+     * 各ディレクトリのページの見出しの抽出は並列に行い、
+     * 書き出しはディレクトリの名前順に 1 つずつつなぐ(逐次処理と同じ出力になる).
      * @param dir ディレクトリ
      * @throws IOException 例外
      */
     private void toc(final File dir) throws IOException {
-        if (dir.isDirectory()) {
-            this.eli.append("<details>\n");
-            this.eli.append("    <summary><span  class=\"tocHeader\">" + dir.getName() + "</span></summary>\n");
-            this.eli.append("<ul>\n");
-            File[] files = dir.listFiles();
-            Arrays.sort(files, new Comparator<File>() {
-                public int compare(File file1, File file2) {
-                    return file1.getName().compareTo(file2.getName());
-                }
-            });
+        DirListing listing = DirListing.of(dir);
+        if (listing == null) {
+            this.tocFile(dir);
+            return;
+        }
 
-            for (File file : files) {
-                this.toc(file);
-            }
-            this.eli.append("</ul>\n");
-            this.eli.append("</details>\n");
-        } else {
-            int idx = dir.getName().lastIndexOf(".");
-            String ext = dir.getName().substring(idx);
-            if (".maki".equals(ext)) {
-                this.createContents(dir);
+        // ディレクトリ構成を先にたどり、ディレクトリごとの抽出を開始する
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            TocDir root = this.tocScan(dir, listing, pool);
+            this.tocWrite(root);
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
             }
         }
     }
 
     /**
-     * カテゴリのリンクリストを作成する.
+     * 目次のディレクトリ構成をたどり、ディレクトリごとのページの見出しの抽出を開始する.
+     * @param dir ディレクトリ
+     * @param listing ディレクトリの一覧
+     * @param pool 抽出を行うスレッド. null の場合はその場で抽出する.
+     * @return 目次のディレクトリ
      */
-    private void category(final String inputDirPath) {
-        // 中間ファイルの存在を確認して読み込む
-        File file = new File(inputDirPath + "/tmp_category.txt");
-        if (file.exists()) {
-            // ファイルが存在した場合、読み込む
-            try (FileInputStream fis = new FileInputStream(file);
-                 InputStreamReader isr = new InputStreamReader(fis, "utf-8");
-                 BufferedReader br = new BufferedReader(isr);) {
-                while (br.ready()) {
-                    String line = br.readLine();
-                    String[] tokens = line.split(";");
-                    if (tokens.length == 2) {
-                        String category = tokens[0];
-                        String[] paths = tokens[1].split(",");
-                        this.eli.write("<ul>\n");
-                        this.eli.write("    <details>\n");
-                        this.eli.write("        <summary><span class=\"tocHeader\">#" + category + "</span></summary>\n");
-                        //this.eli.write("  <li><span class=\"tocHeader\">#" + category + "</span></li>\n");
-                        this.eli.write("  <ul>\n");
-                        for (String path : paths) {
-                            // path のファイルを読み込んで @page_title を取得する
-                            File categoryFile = new File(path);
-                            try (FileInputStream cfis = new FileInputStream(categoryFile);
-                                 InputStreamReader cisr = new InputStreamReader(cfis, "utf-8");
-                                 BufferedReader cbr = new BufferedReader(cisr);) {
-                                String pageTitle = "";
-                                String pageOutline = "";
-                                while (cbr.ready()) {
-                                    String categoryLine = cbr.readLine();
-                                    if (categoryLine.indexOf("@page_title") != -1) {
-                                        pageTitle = categoryLine.split(":")[1];
-                                    } else if (categoryLine.indexOf("@page_outline") != -1) {
-                                        pageOutline = categoryLine.split(":")[1].trim();
-                                    }
-                                }
-                                String html = path.replace(".maki", ".html");
-                                this.eli.write("    <li><a href=\"" + html + "\">" + pageTitle + "</a>&nbsp;" + pageOutline + "</li>\n");
-                            }
-                        }
-                        this.eli.write("  </ul>\n");
-                        this.eli.write("  </details>");
-                        this.eli.write("</ul>\n");
-                    }
+    private TocDir tocScan(final File dir, final DirListing listing, final ExecutorService pool) {
+        int[] sorted = listing.sorted();
+        final File[] files = new File[sorted.length];
+        TocDir[] children = new TocDir[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            File file = new File(dir, listing.name(sorted[i]));
+            DirListing childListing = listing.isDirectory(sorted[i]) ? DirListing.of(file) : null;
+            if (childListing != null) {
+                children[i] = this.tocScan(file, childListing, pool);
+            } else {
+                int idx = file.getName().lastIndexOf(".");
+                String ext = file.getName().substring(idx);
+                if (".maki".equals(ext)) {
+                    files[i] = file;
                 }
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
             }
         }
-    }
 
-    /**
-     * 目次の要素作成.
-     * @param dir ディレクトリ
-     */
-    private void createContents(final File dir) {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(
-                new FileInputStream(dir.getPath()), "utf-8"))) {
-            String tmpLine = "";
-            String tmpOutline = "";
-            while (br.ready()) {
-                String line = br.readLine();
-                if (line == null || line.equals("")) {
-                    continue;
-                }
-                String prefix = line.substring(0, 1);
-                if ("=".equals(prefix)) {
-                    this.eli.write("    <li><a href=\"" + dir.getParent() + File.separator
-                                                        + dir.getName().replace(".maki", ".html") + "\">"
-                                                        + tmpLine + "</a>&nbsp; " + tmpOutline + "</li>" + CONST_CRLF);
-                } else if ("@".equals(prefix)) {
-                    if (line.indexOf("@page_outline") != -1) {
-                        tmpOutline = line.split(":")[1].trim();
+        FutureTask<String[]> fragments = new FutureTask<>(new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                String[] result = new String[files.length];
+                for (int i = 0; i < files.length; i++) {
+                    if (files[i] != null) {
+                        result[i] = Maki.this.contentsFragment(files[i]);
                     }
-                } else {
-                    tmpLine = line;
                 }
+                return result;
             }
-        } catch (FileNotFoundException e) {
-            this.log(e.getMessage());
-            e.printStackTrace();
-        } catch (IOException e) {
-            this.log(e.getMessage());
-            e.printStackTrace();
+        });
+        if (pool != null) {
+            pool.execute(fragments);
+        } else {
+            fragments.run();
         }
+        return new TocDir(dir, children, fragments);
     }
 
     /**
-     * 全ファイルビルド用の再帰呼びのツリー作成処理.
-     * @param dir ディレクトリパス
+     * 目次のディレクトリを名前順に書き出す.
+     * @param node 目次のディレクトリ
+     * @throws IOException 例外
      */
-    private void tree(final File dir) {
-        if (dir.isDirectory()) {
-            for (String child : dir.list()) {
-                this.tree(new File(dir, child));
-            }
-        } else {
-            int idx = dir.getName().lastIndexOf(".");
-            String ext = dir.getName().substring(idx);
-            if (".maki".equals(ext)) {
-                String outputFilePath = dir.getParent() + File.separator + dir.getName().replace(".maki", ".html");
-                String[] args = {MODE_MAKI,
-                                 dir.getPath(),
-                                 outputFilePath};
-                new Maki(args);
+    private void tocWrite(final TocDir node) throws IOException {
+        String[] fragments = node.fragments();
+        this.eli.append("<details>\n");
+        this.eli.append("    <summary><span  class=\"tocHeader\">" + node.dir.getName() + "</span></summary>\n");
+        this.eli.append("<ul>\n");
+        for (int i = 0; i < fragments.length; i++) {
+            if (node.children[i] != null) {
+                this.tocWrite(node.children[i]);
+            } else if (fragments[i] != null) {
+                this.eli.write(fragments[i]);
             }
         }
+        this.eli.append("</ul>\n");
+        this.eli.append("</details>\n");
     }
 
     /**
-     * 旧 NOZOMI の機能. 全ファイルビルド.
-     * @param inDirPath 入力ディレクトリパス
-     * @param outDirPath 出力ディレクトリパス
+     * 目次作成処理(ファイル).
+     * @param file ファイル
+     * @throws IOException 例外
      */
-    private void allFileBuild(final String inDirPath) {
-        this.tree(new File(inDirPath));
+    private void tocFile(final File file) throws IOException {
+        int idx = file.getName().lastIndexOf(".");
+        String ext = file.getName().substring(idx);
+        if (".maki".equals(ext)) {
+            this.createContents(file);
+        }
     }
 
     /**
-     * 編集と書き出し.
-     *
-     * @param line 1行データ
-     * @param orgLine オリジナルの1行データ
-     * @throws IOException ファイル書き込み時の例外
+     * 目次のディレクトリ 1 つ分.
+     * 要素はディレクトリの名前順に並べる.
      */
-    private void editAndWrite(final String line,
-                              final String orgLine) throws IOException {
-
-        if (this.blockZoneFlg && line != null && line.length() == 0) {
-            this.blockList.add("");
+    private static final class TocDir {
+
+        /**
+         * ディレクトリ.
+         */
+        private final File dir;
+
+        /**
+         * 子ディレクトリ. ディレクトリでない要素は null.
+         */
+        private final TocDir[] children;
+
+        /**
+         * 各ページの見出しの目次(抽出中). ページでない要素は null.
+         */
+        private final Future<String[]> fragments;
+
+        /**
+         * コンストラクタ.
+         * @param dir ディレクトリ
+         * @param children 子ディレクトリ
+         * @param fragments 各ページの見出しの目次
+         */
+        TocDir(final File dir, final TocDir[] children, final Future<String[]> fragments) {
+            this.dir = dir;
+            this.children = children;
+            this.fragments = fragments;
         }
 
-        // 空行の場合はスルーする
-        if (line == null || line.length() == 0) {
-            return;
+        /**
+         * 抽出が終わるのを待って、各ページの見出しの目次を取得する.
+         * @return 各ページの見出しの目次
+         * @throws IOException 待機中に割り込まれた場合
+         */
+        String[] fragments() throws IOException {
+            try {
+                return this.fragments.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
         }
+    }
 
-        // 先頭の文字列を取得する
-        String token = line.substring(0, 1);
-
-        if ("=".equals(token)) {
-
-            this.itemListWrite();
-            if (this.tableStatus == 2) {
-                // テーブルが終わった
-                this.tableWrite();
-                this.tableStatus = 0;
+    /**
+     * カテゴリのリンクリストを作成する.
+     */
+    private void category(final String inputDirPath) {
+        // サイトインデックスの存在を確認して読み込む
+        File file = new File(inputDirPath + "/" + SITE_INDEX_FILE_NAME);
+        if (file.exists()) {
+            // ファイルが存在した場合、メモリマップして読み込む
+            try {
+                this.category(SiteIndex.open(file));
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            this.footNoteWrite();
-
-            // ページタイトル
-            this.bw.write("<div class=\"page_top\"><a href=\"#\">^page top</a></div>" + CONST_CRLF);
-            this.bw.write("<h1 " + "id=\"h1_" + h1Cnt + "\">" + this.tempStr + "</h1>" + CONST_CRLF);
-            h1Cnt++;
-
-        } else if ("-".equals(token)) {
+        }
+    }
 
-            this.itemListWrite();
-            if (this.tableStatus == 2) {
-                // テーブルが終わった
-                this.tableWrite();
-                this.tableStatus = 0;
+    /**
+     * カテゴリのリンクリストを作成する.
+     * @param index カテゴリのサイトインデックス
+     * @throws IOException 書き込み時の例外
+     */
+    private void category(final SiteIndex index) throws IOException {
+        int categoryCount = index.categoryCount();
+        for (int i = 0; i < categoryCount; i++) {
+            this.eli.write("<ul>\n");
+            this.eli.write("    <details>\n");
+            this.eli.write("        <summary><span class=\"tocHeader\">#" + index.categoryName(i) + "</span></summary>\n");
+            //this.eli.write("  <li><span class=\"tocHeader\">#" + category + "</span></li>\n");
+            this.eli.write("  <ul>\n");
+            int documentCount = index.documentCount(i);
+            for (int j = 0; j < documentCount; j++) {
+                int id = index.documentId(i, j);
+                String html = index.path(id).replace(".maki", ".html");
+                this.eli.write("    <li><a href=\"" + html + "\">" + index.title(id) + "</a>&nbsp;" + index.outline(id) + "</li>\n");
             }
-            this.footNoteWrite();
-
-            // 見出しレベル2
-            this.bw.write("<div class=\"page_top\"><a href=\"#\">^page top</a></div>" + CONST_CRLF);
-            this.bw.write("<h2 " + "id=\"h2_" + h2Cnt + "\">" + this.tempStr + "</h2>" + CONST_CRLF);
-            h2Cnt++;
-
-        } else if ("~".equals(token)) {
+            this.eli.write("  </ul>\n");
+            this.eli.write("  </details>");
+            this.eli.write("</ul>\n");
+        }
+    }
 
-            this.itemListWrite();
-            if (this.tableStatus == 2) {
-                // テーブルが終わった
-                this.tableWrite();
-                this.tableStatus = 0;
+    /**
+     * カテゴリのサイトインデックス.
+     * 以下の形式のバイナリファイルで、数値はすべてビッグエンディアンの int.
+     * <pre>
+     * ヘッダ      : マジックナンバー, 形式のバージョン, ドキュメント数, カテゴリ数, ID リストの長さ
+     * ドキュメント: (パス, タイトル, 概要) x ドキュメント数
+     * カテゴリ    : (カテゴリ名, ID リストの開始位置, ID 数) x カテゴリ数
+     * ID リスト   : ドキュメント ID x ID リストの長さ
+     * 文字列表    : UTF-8 の文字列
+     * </pre>
+     * 文字列は文字列表の(オフセット, バイト長)で表し、同じ文字列は 1 度だけ格納する.
+     */
+    private static final class SiteIndex {
+
+        /**
+         * マジックナンバー("MKIX").
+         */
+        private static final int MAGIC = 0x4D4B4958;
+
+        /**
+         * 形式のバージョン.
+         */
+        private static final int FORMAT_VERSION = 1;
+
+        /**
+         * ヘッダのバイト数.
+         */
+        private static final int HEADER_BYTES = 4 * 5;
+
+        /**
+         * ドキュメント 1 件のバイト数.
+         */
+        private static final int DOCUMENT_BYTES = 4 * 6;
+
+        /**
+         * カテゴリ 1 件のバイト数.
+         */
+        private static final int CATEGORY_BYTES = 4 * 4;
+
+        /**
+         * メモリマップしたファイル(メモリ上で作成した場合はその内容).
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * ドキュメント表の開始位置.
+         */
+        private final int documentBase;
+
+        /**
+         * カテゴリ表の開始位置.
+         */
+        private final int categoryBase;
+
+        /**
+         * ID リストの開始位置.
+         */
+        private final int idBase;
+
+        /**
+         * 文字列表の開始位置.
+         */
+        private final int stringBase;
+
+        /**
+         * カテゴリ数.
+         */
+        private final int categoryCount;
+
+        /**
+         * コンストラクタ.
+         * @param buffer メモリマップしたファイル
+         * @throws IOException 形式が正しくない場合
+         */
+        private SiteIndex(final ByteBuffer buffer) throws IOException {
+            this.buffer = buffer;
+            if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+                throw new IOException("Unsupported site index format.");
             }
-            this.footNoteWrite();
-
-            // 見出しレベル3
-            this.bw.write("<div class=\"page_top\"><a href=\"#\">^page top</a></div>" + CONST_CRLF);
-            this.bw.write("<h3 " + "id=\"h3_" + h3Cnt + "\">" + this.tempStr + "</h3>" + CONST_CRLF);
-            h3Cnt++;
+            int documentCount = buffer.getInt(8);
+            this.categoryCount = buffer.getInt(12);
+            int idCount = buffer.getInt(16);
+            this.documentBase = HEADER_BYTES;
+            this.categoryBase = this.documentBase + documentCount * DOCUMENT_BYTES;
+            this.idBase = this.categoryBase + this.categoryCount * CATEGORY_BYTES;
+            this.stringBase = this.idBase + idCount * 4;
+        }
 
-        } else if ("@".equals(token)) {
-            // アノテーションの場合
+        /**
+         * サイトインデックスをメモリマップして開く.
+         * @param file サイトインデックスのファイル
+         * @return サイトインデックス
+         * @throws IOException 読み込み時の例外
+         */
+        static SiteIndex open(final File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return new SiteIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
 
-            if (line.indexOf("@category:") != -1) {
-                // 「カテゴリ」アノテーションの場合
-                // カンマ(,)区切りでカテゴリが書かれている場合は、
-                // それぞれ分断して全部 Map に保存しておく。
-                String[] categories = line.substring(10).split(",");
-                for (String category : categories) {
-                    category = category.trim();
-                    this.log("●category: " + category);
+        /**
+         * サイトインデックスを出力する.
+         * タイトルと概要は、この時点のページの @page_title, @page_outline を格納する.
+         * @param file 出力先
+         * @param categoryMap カテゴリとページのパスのマップ
+         * @throws IOException 出力時の例外
+         */
+        static void write(final File file, final Map<String, List<String>> categoryMap) throws IOException {
+            build(categoryMap, null).save(file);
+        }
 
-                    List<String> categoryList = null;
-                    if (categoryMap.containsKey(category)) {
-                        // すでにカテゴリが登録されている場合
-                        this.log("●すでにカテゴリが登録されている場合");
-                        categoryList = categoryMap.get(category);
-                    } else {
-                        // カテゴリが存在しない場合
-                        this.log("●カテゴリが存在しない場合");
-                        categoryList = new ArrayList<>();
+        /**
+         * サイトインデックスをメモリ上に作成する.
+         * @param categoryMap カテゴリとページのパスのマップ
+         * @param pages ビルドしたページの情報(入力パスがキー). ないページと null の
+         *              場合は、この時点のページの @page_title, @page_outline を読み込む.
+         * @return サイトインデックス
+         * @throws IOException 読み込み時の例外
+         */
+        static SiteIndex build(final Map<String, List<String>> categoryMap,
+                               final Map<String, PageMeta> pages) throws IOException {
+            Map<String, int[]> strings = new HashMap<>();
+            ByteArrayOutputStream stringTable = new ByteArrayOutputStream();
+            Map<String, Integer> documentIds = new HashMap<>();
+            List<int[]> documents = new ArrayList<>();
+            List<int[]> categories = new ArrayList<>();
+            List<Integer> ids = new ArrayList<>();
+
+            for (Map.Entry<String, List<String>> category : categoryMap.entrySet()) {
+                int idStart = ids.size();
+                for (String path : category.getValue()) {
+                    Integer id = documentIds.get(path);
+                    if (id == null) {
+                        PageMeta meta = pages == null ? null : pages.get(path);
+                        if (meta == null) {
+                            meta = PageMetaCache.header(new File(path));
+                        }
+                        String pageTitle = "";
+                        String pageOutline = "";
+                        if (meta.title != null) {
+                            pageTitle = meta.title;
+                        }
+                        if (meta.outline != null) {
+                            pageOutline = meta.outline.trim();
+                        }
+                        int[] pathRef = intern(path, strings, stringTable);
+                        int[] titleRef = intern(pageTitle, strings, stringTable);
+                        int[] outlineRef = intern(pageOutline, strings, stringTable);
+                        id = documents.size();
+                        documents.add(new int[] {pathRef[0], pathRef[1], titleRef[0], titleRef[1],
+                                                 outlineRef[0], outlineRef[1]});
+                        documentIds.put(path, id);
                     }
-                    categoryList.add(this.inputFilePath);
-                    categoryMap.put(category, categoryList);
+                    ids.add(id);
                 }
+                int[] nameRef = intern(category.getKey(), strings, stringTable);
+                categories.add(new int[] {nameRef[0], nameRef[1], idStart, ids.size() - idStart});
             }
 
-        } else if ("*".equals(token)) {
-
-            this.blockWrite();
-
-            if (this.tableStatus == 2) {
-                // テーブルが終わった
-                this.tableWrite();
-                this.tableStatus = 0;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    HEADER_BYTES + documents.size() * DOCUMENT_BYTES + categories.size() * CATEGORY_BYTES
+                    + ids.size() * 4 + stringTable.size());
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(documents.size());
+                out.writeInt(categories.size());
+                out.writeInt(ids.size());
+                for (int[] document : documents) {
+                    for (int value : document) {
+                        out.writeInt(value);
+                    }
+                }
+                for (int[] category : categories) {
+                    for (int value : category) {
+                        out.writeInt(value);
+                    }
+                }
+                for (int id : ids) {
+                    out.writeInt(id);
+                }
+                stringTable.writeTo(out);
             }
+            return new SiteIndex(ByteBuffer.wrap(bytes.toByteArray()));
+        }
 
-            // レベル1箇条書き
-            this.itemList.add(line.trim().substring(2));
-
-        } else if (".".equals(token)) {
-
-            this.itemListWrite();
-            //this.footNoteWrite();
-
-            if (this.tableStatus == 2) {
-                // テーブルが終わった
-                this.tableWrite();
-                this.tableStatus = 0;
+        /**
+         * サイトインデックスをファイルへ出力する.
+         * @param file 出力先
+         * @throws IOException 出力時の例外
+         */
+        void save(final File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer src = this.buffer.duplicate();
+                src.position(0);
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
             }
+        }
 
-            // .. code-block:: かどうか
-            if (line.indexOf("code-block::") != -1) {
-                this.blockZoneFlg = true;
-                this.isCodeBlock = true;
+        /**
+         * 文字列を文字列表に格納する. 格納済みの場合はその位置を返す.
+         * @param value 文字列
+         * @param strings 格納済みの文字列と位置
+         * @param stringTable 文字列表
+         * @return [0]: オフセット, [1]: バイト長
+         */
+        private static int[] intern(final String value, final Map<String, int[]> strings,
+                                    final ByteArrayOutputStream stringTable) {
+            int[] ref = strings.get(value);
+            if (ref == null) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                ref = new int[] {stringTable.size(), bytes.length};
+                stringTable.write(bytes, 0, bytes.length);
+                strings.put(value, ref);
             }
+            return ref;
+        }
 
-            // .. quote:: かどうか
-            if (line.indexOf("quote::") != -1) {
-                this.blockZoneFlg = true;
-                this.isCodeBlock = false;
+        /**
+         * カテゴリ数を取得する.
+         * @return カテゴリ数
+         */
+        int categoryCount() {
+            return this.categoryCount;
+        }
 
-                String cite = line.substring(11);
-                this.blockList.add("cite:" + cite);
-            }
+        /**
+         * カテゴリ名を取得する.
+         * @param category カテゴリの番号
+         * @return カテゴリ名
+         */
+        String categoryName(final int category) {
+            return this.string(this.categoryBase + category * CATEGORY_BYTES);
+        }
 
-            // .. image:: かどうか
-            if (line.indexOf("image::") != -1) {
+        /**
+         * カテゴリのドキュメント数を取得する.
+         * @param category カテゴリの番号
+         * @return ドキュメント数
+         */
+        int documentCount(final int category) {
+            return this.buffer.getInt(this.categoryBase + category * CATEGORY_BYTES + 12);
+        }
 
-                // 画像ファイル(パス)名を取得する
-                String imagePath = line.substring(11);
-                String width = "";
-                String align = "";
+        /**
+         * カテゴリの index 番目のドキュメント ID を取得する.
+         * @param category カテゴリの番号
+         * @param index カテゴリ内の位置
+         * @return ドキュメント ID
+         */
+        int documentId(final int category, final int index) {
+            int idStart = this.buffer.getInt(this.categoryBase + category * CATEGORY_BYTES + 8);
+            return this.buffer.getInt(this.idBase + (idStart + index) * 4);
+        }
 
-                if (imagePath.indexOf(",") != -1) {
-                    String[] tokens = imagePath.split(",");
-                    imagePath = tokens[0];
-                    width = tokens[1].trim();
+        /**
+         * ドキュメントのパスを取得する.
+         * @param id ドキュメント ID
+         * @return パス
+         */
+        String path(final int id) {
+            return this.string(this.documentBase + id * DOCUMENT_BYTES);
+        }
 
-                    // right or left or center までの設定
-                    if (tokens.length == 3) {
-                        align = tokens[2].trim();
-                    }
-                }
+        /**
+         * ドキュメントのタイトルを取得する.
+         * @param id ドキュメント ID
+         * @return タイトル(@page_title). 設定されていなければ空文字.
+         */
+        String title(final int id) {
+            return this.string(this.documentBase + id * DOCUMENT_BYTES + 8);
+        }
 
-                if (!align.equals("")) {
+        /**
+         * ドキュメントの概要を取得する.
+         * @param id ドキュメント ID
+         * @return 概要(@page_outline). 設定されていなければ空文字.
+         */
+        String outline(final int id) {
+            return this.string(this.documentBase + id * DOCUMENT_BYTES + 16);
+        }
 
-                    if ("center".equals(align)) {
-                        this.bw.write("<div style=\"text-align:center\">" + CONST_CRLF);
-                    } else {
-                        if ("right".equals(align)) {
-                            this.bw.write("<div style=\"float:right;margin-left:20px;margin-bottom:10px\">" + CONST_CRLF);
-                        } else if ("left".equals(align)) {
-                            this.bw.write("<div style=\"float:left; margin-left: 35px; margin-right:20px;margin-bottom:10px\">" + CONST_CRLF);
-                        } else {
-                            this.bw.write("<div style=\"text-align:left; margin-left: 35px;\">" + CONST_CRLF);
-                        }
-                    }
+        /**
+         * 文字列表から文字列を取得する.
+         * @param position (オフセット, バイト長)の位置
+         * @return 文字列
+         */
+        private String string(final int position) {
+            int offset = this.buffer.getInt(position);
+            int length = this.buffer.getInt(position + 4);
+            byte[] bytes = new byte[length];
+            this.buffer.get(this.stringBase + offset, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
 
-                    if (!width.equals("")) {
-                        this.bw.write("<a href=\"" + imagePath + "\"><img src=\"" + imagePath + "\" width=\"" + width + "\"/></a>");
-                    } else {
-                        this.bw.write("<a href=\"" + imagePath + "\"><img src=\"" + imagePath + "\"/></a>");
-                    }
-                    this.bw.write("</div>" + CONST_CRLF);
-                } else {
-                    this.bw.write("<div style=\"margin-left: 35px;\">" + CONST_CRLF);
-                    if (!width.equals("")) {
-                        this.bw.write("<a href=\"" + imagePath + "\"><img src=\"" + imagePath + "\" width=\"" + width + "\"/></a>");
-                    } else {
-                        this.bw.write("<a href=\"" + imagePath + "\"><img src=\"" + imagePath + "\"/></a>");
-                    }
-                    this.bw.write("</div>" + CONST_CRLF);
-                }
+    /**
+     * 目次の要素作成.
+     * @param dir ディレクトリ
+     * @throws IOException 書き込み時の例外
+     */
+    private void createContents(final File dir) throws IOException {
+        this.eli.write(this.contentsFragment(dir));
+    }
+
+    /**
+     * ページの見出しの目次を作成する.
+     * 複数のスレッドから呼び出せる.
+     * @param dir ファイル
+     * @return 見出しの目次. 読み込めない場合は空文字.
+     */
+    private String contentsFragment(final File dir) {
+        StringBuilder fragment = new StringBuilder();
+        try {
+            PageMeta meta = this.pageContents(dir);
+            for (String[] content : meta.contents) {
+                fragment.append("    <li><a href=\"").append(dir.getParent()).append(File.separator)
+                        .append(dir.getName().replace(".maki", ".html")).append("\">")
+                        .append(content[0]).append("</a>&nbsp; ").append(content[1]).append("</li>").append(CONST_CRLF);
+            }
+        } catch (FileNotFoundException e) {
+            this.log(e.getMessage());
+            e.printStackTrace();
+        } catch (IOException e) {
+            this.log(e.getMessage());
+            e.printStackTrace();
+        }
+        return fragment.toString();
+    }
+
+    /**
+     * 目次用の見出し1を含むページ情報を取得する.
+     * ビルド中に覚えたページ情報があればそれを使い、なければキャッシュから取得する.
+     * 複数のスレッドから呼び出せる.
+     * @param file ページのファイル
+     * @return ページ情報
+     * @throws IOException 読み込み時の例外
+     */
+    private PageMeta pageContents(final File file) throws IOException {
+        if (this.context.pages != null) {
+            PageMeta meta = this.context.pages.get(file.getPath());
+            if (meta != null) {
+                return meta;
             }
+        }
+        return PageMetaCache.contents(file);
+    }
+
+    /**
+     * 差分ビルドの管理情報.
+     * 前回ビルドしたときの各ファイルの状態を保持し、変更の有無を判定する.
+     * ファイル形式(UTF-8, タブ区切り):
+     *   1 行目: #maki-manifest, Maki のバージョン, スタイルシートの出力方法, ルートディレクトリ
+     *   2 行目以降: 入力パス, サイズ, 更新日時, CRC32C, 出力パス, カテゴリ(カンマ区切り)
+     *   続く > で始まる行: そのページの .. link:: のリンク先, 読み込めたか(1/0),
+     *                      埋め込んだ @page_title, @page_outline
+     * バージョン、スタイルシートの出力方法(インラインか maki.(チェックサム).css か)、
+     * ルートディレクトリのいずれかが異なる場合は全ファイルをビルドする.
+     * リンク先からリンク元への逆引きの依存関係を作り、リンク先の
+     * タイトルか概要が埋め込んだときと変わっていれば、リンク元は
+     * 変更がなくても再ビルドする.
+     */
+    private static final class BuildManifest {
+
+        /**
+         * 管理ファイルの 1 行目の識別子.
+         */
+        private static final String HEADER = "#maki-manifest";
+
+        /**
+         * 前回のビルドの管理情報(入力パスがキー).
+         */
+        private final Map<String, ManifestEntry> previous;
+
+        /**
+         * 今回のビルドの管理情報(入力パスがキー).
+         */
+        private final Map<String, ManifestEntry> current = new ConcurrentHashMap<>();
+
+        /**
+         * ルートディレクトリ.
+         */
+        private final String root;
+
+        /**
+         * リンク先が変わったため再ビルドが必要なページの入力パス.
+         */
+        private final Set<String> dirtyPaths = new HashSet<>();
+
+        /**
+         * コンストラクタ.
+         * @param previous 前回のビルドの管理情報
+         * @param root ルートディレクトリ
+         */
+        private BuildManifest(final Map<String, ManifestEntry> previous, final String root) {
+            this.previous = previous;
+            this.root = root;
+        }
 
-            // .. note:: かどうか
-            if (line.indexOf("note::") != -1) {
-                // タイトルと本文を取得する
-                String note = line.substring(10);
-                StringTokenizer noteToken = new StringTokenizer(note, ",");
-                String title = noteToken.nextToken();
-                String noteSentence = noteToken.nextToken();
+        /**
+         * 管理ファイルの 1 行目を作成する.
+         * @param root ルートディレクトリ
+         * @return 管理ファイルの 1 行目
+         */
+        private static String header(final String root) {
+            String stylesheet = EXTERNAL_STYLESHEET ? STYLESHEET_NAME : "inline";
+            return HEADER + "\t" + CONST_VERSION + "\t" + stylesheet + "\t" + root;
+        }
 
-                this.bw.write("<br>" + CONST_CRLF);
-                this.bw.write("<div class=\"box27\">" + CONST_CRLF);
-                this.bw.write("    <span class=\"box-title\">" + title + "</span>" + CONST_CRLF);
-                this.bw.write("    <p>" + noteSentence + "</p>" + CONST_CRLF);
-                this.bw.write("</div>" + CONST_CRLF);
+        /**
+         * 管理ファイルを読み込む.
+         * 存在しない場合や読み込めない場合は空の管理情報とする.
+         * @param file 管理ファイル
+         * @param root ルートディレクトリ
+         * @return 管理情報
+         */
+        static BuildManifest load(final File file, final String root) {
+            Map<String, ManifestEntry> previous = new HashMap<>();
+            if (file.exists()) {
+                try (FileInputStream fis = new FileInputStream(file);
+                     InputStreamReader isr = new InputStreamReader(fis, "utf-8");
+                     BufferedReader br = new BufferedReader(isr);) {
+                    String header = br.readLine();
+                    if (header != null
+                            && header.equals(header(root))) {
+                        String line;
+                        ManifestEntry entry = null;
+                        while ((line = br.readLine()) != null) {
+                            String[] tokens = line.split("\t", -1);
+                            if (tokens[0].equals(">")) {
+                                // 直前のページのリンク先
+                                if (entry == null) {
+                                    continue;
+                                }
+                                if (tokens.length != 5) {
+                                    // 壊れている場合はそのページを再ビルドさせる
+                                    previous.remove(entry.path);
+                                    entry = null;
+                                    continue;
+                                }
+                                String[] annotation = null;
+                                if ("1".equals(tokens[2])) {
+                                    annotation = new String[] {tokens[3], tokens[4]};
+                                }
+                                entry.links.add(new LinkDependency(tokens[1], annotation));
+                                continue;
+                            }
+                            if (tokens.length != 6) {
+                                entry = null;
+                                continue;
+                            }
+                            List<String> categories = new ArrayList<>();
+                            if (tokens[5].length() != 0) {
+                                categories.addAll(Arrays.asList(tokens[5].split(",")));
+                            }
+                            entry = new ManifestEntry(tokens[0],
+                                    Long.parseLong(tokens[1]), Long.parseLong(tokens[2]),
+                                    Long.parseLong(tokens[3], 16), tokens[4], categories,
+                                    new ArrayList<LinkDependency>(), false);
+                            previous.put(tokens[0], entry);
+                        }
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    // 壊れている場合は全ファイルをビルドする
+                    e.printStackTrace();
+                    previous.clear();
+                }
             }
+            BuildManifest manifest = new BuildManifest(previous, root);
+            manifest.resolveDependencies(null);
+            return manifest;
+        }
 
-            // .. link:: かどうか
-            if (line.indexOf("link::") != -1) {
+        /**
+         * 今回のビルドの管理情報を前回分として、次の差分ビルドの管理情報を作成する.
+         * 今回のビルドの管理情報は引き継ぐため、ビルドしなかったファイルも保存される.
+         * @param changedPaths 変更されたファイルの入力パス
+         * @return 次の差分ビルドの管理情報
+         */
+        BuildManifest next(final Set<String> changedPaths) {
+            BuildManifest manifest = new BuildManifest(new HashMap<>(this.current), this.root);
+            manifest.current.putAll(this.current);
+            manifest.resolveDependencies(changedPaths);
+            return manifest;
+        }
+
+        /**
+         * 今回のビルドの管理情報を取得する.
+         * @param path 入力ファイルのパス
+         * @return 管理情報. ない場合は null.
+         */
+        ManifestEntry get(final String path) {
+            return this.current.get(path);
+        }
 
-                // リンク先ファイルの相対パスを取得
-                String link = line.substring(10);
-                if (".".equals(link.substring(0, 1))) {
-                    // 先頭が . の場合は除去する
-                    link = link.substring(1);
+        /**
+         * 削除されたファイルの管理情報を取り除く.
+         * ディレクトリの場合は配下のファイルも取り除く.
+         * @param path 削除されたファイルかディレクトリのパス
+         * @return 取り除いた場合は true
+         */
+        boolean remove(final String path) {
+            boolean removed = this.current.remove(path) != null;
+            String prefix = path + File.separator;
+            Iterator<String> iter = this.current.keySet().iterator();
+            while (iter.hasNext()) {
+                if (iter.next().startsWith(prefix)) {
+                    iter.remove();
+                    removed = true;
                 }
+            }
+            return removed;
+        }
 
-                // リンク先のファイルを読み込み
-                BufferedReader tmpBr =  new BufferedReader(new InputStreamReader(
-                                            new FileInputStream(new File(rootDir + link)), "utf-8"));
+        /**
+         * リンク先からリンク元への逆引きの依存関係を作り、
+         * リンク先のタイトルか概要が変わったページを再ビルド対象にする.
+         * @param targets 確認するリンク先の入力パス. null の場合はすべて.
+         */
+        private void resolveDependencies(final Set<String> targets) {
+            Map<String, List<ManifestEntry>> dependents = new HashMap<>();
+            for (ManifestEntry entry : this.previous.values()) {
+                for (LinkDependency link : entry.links) {
+                    if (targets != null && !targets.contains(link.path)) {
+                        continue;
+                    }
+                    List<ManifestEntry> list = dependents.get(link.path);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        dependents.put(link.path, list);
+                    }
+                    list.add(entry);
+                }
+            }
 
-                // リンク先のアノテーションを取得する
-                // ※インスタンス変数の pageTitle, pageOutline は当該ページのもの
-                String linkTitle = "Linked page annotation(@page_title) is not set.";
-                String outline = "Linked page annotation(@page_outline) is not set.";
+            for (Map.Entry<String, List<ManifestEntry>> target : dependents.entrySet()) {
+                File file = new File(target.getKey());
+                ManifestEntry old = this.previous.get(target.getKey());
+                if (old != null && file.length() == old.size && file.lastModified() == old.modified) {
+                    // リンク先に変更がないのでリンク元も変更なし
+                    continue;
+                }
 
-                while (tmpBr.ready()) {
-                    String tmpLine = tmpBr.readLine();
-                    if (tmpLine.indexOf("@page_title") != -1) {
-                        linkTitle = tmpLine.split(":")[1];
-                    } else if (tmpLine.indexOf("@page_outline") != -1) {
-                        outline = tmpLine.split(":")[1];
+                String[] annotation = null;
+                if (file.exists()) {
+                    try {
+                        annotation = readLinkAnnotation(file);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                for (ManifestEntry dependent : target.getValue()) {
+                    for (LinkDependency link : dependent.links) {
+                        if (link.path.equals(target.getKey()) && !link.sameAnnotation(annotation)) {
+                            this.dirtyPaths.add(dependent.path);
+                        }
                     }
                 }
+            }
+        }
 
-                this.bw.write("<div class=\"inner-link-box\">" + CONST_CRLF);
-                this.bw.write("  <span style=\"font-weight: bold; font-size: 0.8em;\">blog.tmp.maki</span><br>" + CONST_CRLF);
-                this.bw.write("  <span class=\"link-badge\">Inner Link</span><a href=\""
-                                    + rootDir + link.replace(".maki", ".html")
-                                    +  "\" target=\"_blank\"><b>" + linkTitle + "</b></a><br>" + CONST_CRLF);
-                this.bw.write("  <div class=\"inner-link-outline\">" + outline + "</div>" + CONST_CRLF);
-                this.bw.write("  <span style=\"font-weight: bold; font-size: 0.6em; text-align: right;\">■created by @tomohiko37_i </span>" + CONST_CRLF);
-                this.bw.write("</div>" + CONST_CRLF);
+        /**
+         * 入力ファイルが前回のビルドから変更されていないか判定する.
+         * サイズと更新日時が同じであれば変更なし、更新日時だけ異なる
+         * 場合はチェックサムで判定する. 出力ファイルがない場合は変更ありとする.
+         * @param file 入力ファイル
+         * @param outputFilePath 出力ファイルのパス
+         * @return 入力ファイルの現在の状態
+         * @throws IOException 読み込み時の例外
+         */
+        ManifestEntry check(final File file, final String outputFilePath) throws IOException {
+            String path = file.getPath();
+            long size = file.length();
+            long modified = file.lastModified();
+            ManifestEntry old = this.previous.get(path);
+
+            boolean sameFile = old != null
+                    && !this.dirtyPaths.contains(path)
+                    && old.size == size
+                    && outputFilePath.equals(old.outputPath)
+                    && new File(outputFilePath).exists();
+            if (sameFile && old.modified == modified) {
+                return new ManifestEntry(path, size, modified, old.checksum, outputFilePath,
+                                         old.categories, old.links, true);
+            }
 
-                tmpBr.close();
+            long checksum = checksum(file);
+            if (sameFile && old.checksum == checksum) {
+                return new ManifestEntry(path, size, modified, checksum, outputFilePath,
+                                         old.categories, old.links, true);
             }
+            return new ManifestEntry(path, size, modified, checksum, outputFilePath,
+                                     new ArrayList<String>(), new ArrayList<LinkDependency>(), false);
+        }
 
-        } else if ("+".equals(token)) {
+        /**
+         * 今回のビルドの管理情報を更新する.
+         * @param entry 入力ファイルの状態
+         */
+        void update(final ManifestEntry entry) {
+            this.current.put(entry.path, entry);
+        }
 
-            this.itemListWrite();
+        /**
+         * 管理ファイルへ書き出す.
+         * @param file 管理ファイル
+         */
+        void save(final File file) {
+            try (FileOutputStream fos = new FileOutputStream(file);
+                 OutputStreamWriter osw = new OutputStreamWriter(fos, "utf-8");
+                 BufferedWriter bw = new BufferedWriter(osw);) {
+                bw.write(header(this.root) + "\n");
+                for (ManifestEntry entry : new TreeMap<>(this.current).values()) {
+                    bw.write(entry.path + "\t" + entry.size + "\t" + entry.modified + "\t"
+                            + Long.toHexString(entry.checksum) + "\t" + entry.outputPath + "\t"
+                            + String.join(",", entry.categories) + "\n");
+                    for (LinkDependency link : entry.links) {
+                        if (link.annotation == null) {
+                            bw.write(">\t" + link.path + "\t0\t\t\n");
+                        } else {
+                            bw.write(">\t" + link.path + "\t1\t" + link.annotation[0]
+                                    + "\t" + link.annotation[1] + "\n");
+                        }
+                    }
+                }
+                bw.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
-            // テーブル対応(1)
-            // 先頭が + の場合は一番上か，一番下か，ヘッダとデータの区切りか，
-            // 行の区切りのいずれか。
-            if (this.tableStatus == 0) {
-                // 1 行目が来た
-                this.tableStatus = 1; // ヘッダが始まった
-            } else if (this.tableStatus == 1) {
-                // データに切り替わる
-                this.tableStatus = 2;
-            } else {
-                // 状況: 2 の場合
-                // データ部編集中
+        /**
+         * ファイルのチェックサム(CRC32C)を求める.
+         * @param file ファイル
+         * @return チェックサム
+         * @throws IOException 読み込み時の例外
+         */
+        private static long checksum(final File file) throws IOException {
+            CRC32C crc = new CRC32C();
+            byte[] buf = new byte[64 * 1024];
+            try (InputStream is = new FileInputStream(file)) {
+                int len;
+                while ((len = is.read(buf)) != -1) {
+                    crc.update(buf, 0, len);
+                }
             }
+            return crc.getValue();
+        }
+    }
 
-        } else if ("|".equals(token)) {
+    /**
+     * 差分ビルドで管理する 1 ファイル分の状態.
+     */
+    private static final class ManifestEntry {
+
+        /**
+         * 入力ファイルのパス.
+         */
+        private final String path;
+
+        /**
+         * 入力ファイルのサイズ.
+         */
+        private final long size;
+
+        /**
+         * 入力ファイルの更新日時.
+         */
+        private final long modified;
+
+        /**
+         * 入力ファイルのチェックサム(CRC32C).
+         */
+        private final long checksum;
+
+        /**
+         * 出力ファイルのパス.
+         */
+        private final String outputPath;
+
+        /**
+         * ページに書かれていたカテゴリ.
+         */
+        private final List<String> categories;
+
+        /**
+         * ページの .. link:: で埋め込んだリンク先.
+         */
+        private final List<LinkDependency> links;
+
+        /**
+         * 前回のビルドから変更がないかどうか.
+         */
+        private final boolean upToDate;
+
+        /**
+         * コンストラクタ.
+         * @param path 入力ファイルのパス
+         * @param size 入力ファイルのサイズ
+         * @param modified 入力ファイルの更新日時
+         * @param checksum 入力ファイルのチェックサム
+         * @param outputPath 出力ファイルのパス
+         * @param categories ページに書かれていたカテゴリ
+         * @param links ページの .. link:: で埋め込んだリンク先
+         * @param upToDate 前回のビルドから変更がないかどうか
+         */
+        ManifestEntry(final String path, final long size, final long modified, final long checksum,
+                      final String outputPath, final List<String> categories,
+                      final List<LinkDependency> links, final boolean upToDate) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+            this.outputPath = outputPath;
+            this.categories = categories;
+            this.links = links;
+            this.upToDate = upToDate;
+        }
 
-            // テーブルの中の実際の要素行
-            // 状況の値を判別しながら処理する
-            if (this.tableStatus == 0) {
-                // この状況はありえない
-            } else if (this.tableStatus == 1) {
-                // この行はヘッダ部である。
-                this.tableHeader = line;
-            } else if (this.tableStatus == 2) {
-                // データ部である
-                this.tableDataList.add(line);
-            }
+        /**
+         * ビルドした後の状態を作成する.
+         * @param builtCategories ページに書かれていたカテゴリ
+         * @param builtLinks ページの .. link:: で埋め込んだリンク先
+         * @return ビルドした後の状態
+         */
+        ManifestEntry built(final List<String> builtCategories, final List<LinkDependency> builtLinks) {
+            return new ManifestEntry(this.path, this.size, this.modified, this.checksum,
+                                     this.outputPath, builtCategories, builtLinks, true);
+        }
+    }
 
-        } else if (" ".equals(token)) {
+    /**
+     * .. link:: によるページ間の依存関係(リンク先 1 つ分).
+     */
+    private static final class LinkDependency {
+
+        /**
+         * リンク先のファイルのパス.
+         */
+        private final String path;
+
+        /**
+         * 埋め込んだアノテーション([0]: @page_title, [1]: @page_outline).
+         * リンク先を読み込めなかった場合は null.
+         */
+        private final String[] annotation;
+
+        /**
+         * コンストラクタ.
+         * @param path リンク先のファイルのパス
+         * @param annotation 埋め込んだアノテーション
+         */
+        LinkDependency(final String path, final String[] annotation) {
+            this.path = path;
+            this.annotation = annotation;
+        }
 
-            // ブロックのエリア内であれば先頭空白の行は全部保持する
-            if (this.blockZoneFlg) {
-                //this.blockList.add(line);
-                this.blockList.add(orgLine);
-                // (廃止→)オリジナル行を使用したときに、オリジナル行に
-                // (廃止→)脚注要素があればリストから削除しておく
-            } else {
-                // 先頭が空白の場合はレベル2以降の箇条書き
-                if (line.indexOf("    * ") != -1) {
+        /**
+         * 埋め込んだアノテーションと同じかどうか.
+         * @param current リンク先の現在のアノテーション
+         * @return 同じなら true
+         */
+        boolean sameAnnotation(final String[] current) {
+            return Arrays.equals(this.annotation, current);
+        }
+    }
 
-                    // レベル3
+    /**
+     * ディレクトリの一覧.
+     * 1 回の走査で各要素の名前と種別を集め、ディレクトリの更新日時をキーに
+     * JVM 内でキャッシュする. 要素の追加・削除・名前の変更がなければ
+     * ディレクトリの更新日時は変わらないため、次回以降の走査では
+     * ディレクトリごとに 1 回の stat だけで一覧を再利用できる.
+     * 件数が上限を超えた場合は最も古く参照されたものから破棄する.
+     * 要素の並びは File#list と同じ(ディレクトリの読み込み順).
+     */
+    private static final class DirListing {
+
+        /**
+         * キャッシュする件数の上限.
+         */
+        private static final int MAX_ENTRIES = 4096;
+
+        /**
+         * 一覧のキャッシュ(ディレクトリのパスがキー、参照順).
+         * 読み取り専用の一覧を保持するため、複数のビルドで共有する.
+         */
+        private static final Map<String, DirListing> CACHE = new LinkedHashMap<String, DirListing>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, DirListing> eldest) {
+                return this.size() > MAX_ENTRIES;
+            }
+        };
+
+        /**
+         * 走査したときのディレクトリの更新日時.
+         */
+        private final FileTime modified;
+
+        /**
+         * 要素の名前.
+         */
+        private final String[] names;
+
+        /**
+         * 要素がディレクトリかどうか.
+         */
+        private final boolean[] directories;
+
+        /**
+         * 名前順の添字の並び(最初に使うときに作成する).
+         */
+        private volatile int[] sorted = null;
+
+        /**
+         * コンストラクタ.
+         * @param modified ディレクトリの更新日時
+         * @param names 要素の名前
+         * @param directories 要素がディレクトリかどうか
+         */
+        private DirListing(final FileTime modified, final String[] names, final boolean[] directories) {
+            this.modified = modified;
+            this.names = names;
+            this.directories = directories;
+        }
 
-                    // 最後の要素を取得する
-                    Object obj = this.itemList.get(this.itemList.size() - 1);
-                    if (obj instanceof String) {
+        /**
+         * ディレクトリの一覧を取得する.
+         * ディレクトリの更新日時が前回の走査から変わっていなければキャッシュを返す.
+         * @param dir ディレクトリ
+         * @return 一覧. ディレクトリでない(または読めない)場合は null.
+         */
+        static DirListing of(final File dir) {
+            Path path = dir.toPath();
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException e) {
+                return null;
+            }
+            if (!attrs.isDirectory()) {
+                return null;
+            }
+            // 走査より先に更新日時を取得しておくため、走査中の変更は次回に反映される
+            FileTime modified = attrs.lastModifiedTime();
+            String key = dir.getPath();
+            DirListing cached;
+            synchronized (CACHE) {
+                cached = CACHE.get(key);
+            }
+            if (cached != null && cached.modified.equals(modified)) {
+                return cached;
+            }
 
-                        // レベル1の次にいきなりレベル3はないはず
+            final List<String> names = new ArrayList<>();
+            final List<Boolean> directories = new ArrayList<>();
+            try {
+                Files.walkFileTree(path, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(final Path file, final BasicFileAttributes fileAttrs) {
+                        names.add(file.getFileName().toString());
+                        directories.add(fileAttrs.isDirectory());
+                        return FileVisitResult.CONTINUE;
+                    }
 
-                    } else if (obj instanceof List) {
+                    @Override
+                    public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+                        if (file.equals(path)) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                        names.add(file.getFileName().toString());
+                        directories.add(Boolean.FALSE);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                return null;
+            }
 
-                        // レベル2のリストを取得する
-                        @SuppressWarnings("unchecked")
-                        List<Object> tmpLv2 = (List<Object>) obj;
+            boolean[] types = new boolean[directories.size()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = directories.get(i);
+            }
+            DirListing listing = new DirListing(modified, names.toArray(new String[0]), types);
+            synchronized (CACHE) {
+                CACHE.put(key, listing);
+            }
+            return listing;
+        }
 
-                        // レベル2のリストの最後を取得する
-                        Object objL2Last = tmpLv2.get(tmpLv2.size() - 1);
-                        if (objL2Last instanceof String) {
+        /**
+         * 要素の数を取得する.
+         * @return 要素の数
+         */
+        int size() {
+            return this.names.length;
+        }
 
-                            // 最後が文字列だったら新しいリストを作って格納する
-                            List<String> tmp = new ArrayList<String>();
-                            tmp.add(line.trim().substring(2));
-                            tmpLv2.add(tmp);
+        /**
+         * 要素の名前を取得する.
+         * @param index 添字
+         * @return 名前
+         */
+        String name(final int index) {
+            return this.names[index];
+        }
 
-                        } else if (objL2Last instanceof List) {
+        /**
+         * 要素がディレクトリかどうか.
+         * @param index 添字
+         * @return ディレクトリなら true
+         */
+        boolean isDirectory(final int index) {
+            return this.directories[index];
+        }
 
-                            // リストだったら追加する
-                            @SuppressWarnings("unchecked")
-                            List<Object> l3List = (List<Object>) objL2Last;
-                            l3List.add(line.trim().substring(2));
-                        }
+        /**
+         * 名前順の添字の並びを取得する.
+         * @return 名前順の添字の並び
+         */
+        int[] sorted() {
+            int[] result = this.sorted;
+            if (result == null) {
+                Integer[] work = new Integer[this.names.length];
+                for (int i = 0; i < work.length; i++) {
+                    work[i] = i;
+                }
+                Arrays.sort(work, new Comparator<Integer>() {
+                    public int compare(final Integer index1, final Integer index2) {
+                        return DirListing.this.names[index1].compareTo(DirListing.this.names[index2]);
                     }
+                });
+                result = new int[work.length];
+                for (int i = 0; i < work.length; i++) {
+                    result[i] = work[i];
+                }
+                this.sorted = result;
+            }
+            return result;
+        }
+    }
 
-                } else if (line.indexOf("  * ") != -1) {
+    /**
+     * 全ファイルビルド用の再帰呼びのツリー作成処理.
+     * @param dir ディレクトリパス
+     * @param order ツリーをたどる順の添字の並び
+     */
+    private void tree(final File dir, final int[] order) {
+        DirListing listing = DirListing.of(dir);
+        if (listing != null) {
+            for (int i = 0; i < listing.size(); i++) {
+                File child = new File(dir, listing.name(i));
+                if (listing.isDirectory(i)) {
+                    this.tree(child, childOrder(order, i));
+                } else {
+                    this.buildFile(child, childOrder(order, i));
+                }
+            }
+        } else {
+            this.buildFile(dir, order);
+        }
+    }
 
-                    // レベル2
+    /**
+     * 子要素の並び順を作成する.
+     * @param order 親の並び順
+     * @param index 子要素の添字
+     * @return 子要素の並び順
+     */
+    private static int[] childOrder(final int[] order, final int index) {
+        int[] child = Arrays.copyOf(order, order.length + 1);
+        child[order.length] = index;
+        return child;
+    }
 
-                    // 最後の要素を取得する
-                    Object obj = this.itemList.get(this.itemList.size() - 1);
-                    if (obj instanceof String) {
+    /**
+     * 1 ファイルのビルド.
+     * .maki ファイル以外は何もしない.
+     * 差分ビルドの場合、前回のビルドから変更のないファイルは
+     * ビルドせずにカテゴリだけを登録する.
+     * @param file ファイル
+     * @param order ビルド内でのページの並び順
+     */
+    private void buildFile(final File file, final int[] order) {
+        int idx = file.getName().lastIndexOf(".");
+        String ext = file.getName().substring(idx);
+        if (".maki".equals(ext)) {
+            String outputFilePath = file.getParent() + File.separator + file.getName().replace(".maki", ".html");
+
+            ManifestEntry entry = null;
+            if (this.context.manifest != null) {
+                try {
+                    entry = this.context.manifest.check(file, outputFilePath);
+                } catch (IOException e) {
+                    this.log(e.getMessage());
+                    e.printStackTrace();
+                    return;
+                }
+                if (entry.upToDate) {
+                    this.log("skip: " + file.getPath());
+                    this.context.categoryCollector.record(order, file.getPath(), entry.categories);
+                    this.context.manifest.update(entry);
+                    return;
+                }
+            }
 
-                        // 最後が文字列だったら新しいリストを作って格納する
-                        List<Object> tmp = new ArrayList<Object>();
-                        tmp.add(line.trim().substring(2));
-                        this.itemList.add(tmp);
+            String[] args = {MODE_MAKI,
+                             file.getPath(),
+                             outputFilePath};
+            Maki maki = new Maki(args, this.context, order);
 
-                    } else if (obj instanceof List) {
+            if (this.context.manifest != null) {
+                this.context.manifest.update(entry.built(maki.pageCategories, maki.pageLinks));
+            }
+        }
+    }
 
-                        // 最後がリストだったらリストへ追加する
-                        @SuppressWarnings("unchecked")
-                        List<Object> tmp = (List<Object>) obj;
-                        tmp.add(line.trim().substring(2));
-                    }
+    /**
+     * 旧 NOZOMI の機能. 全ファイルビルド.
+     * @param inDirPath 入力ディレクトリパス
+     */
+    private void allFileBuild(final String inDirPath) {
+        if (this.context.workers <= 1) {
+            this.tree(new File(inDirPath), new int[0]);
+            return;
+        }
+
+        // 並列ビルド
+        this.log("parallel build: workers [" + this.context.workers + "]");
+        new PagePipeline(this, this.context.workers).run(new File(inDirPath));
+    }
+
+    /**
+     * 目次とカテゴリのサイトインデックスを作成する.
+     * カテゴリは差分ビルドの管理情報から、全ファイルビルドと同じ並び順で集める.
+     * @param inDirPath 入力ディレクトリパス
+     */
+    private void writeIndex(final String inDirPath) {
+        CategoryCollector collector = new CategoryCollector();
+        this.collectCategories(new File(inDirPath), new int[0], collector);
+        try {
+            SiteIndex.write(new File(this.context.rootDir + "/" + SITE_INDEX_FILE_NAME), collector.merge());
+        } catch (IOException e) {
+            this.log(e.getMessage());
+            e.printStackTrace();
+        }
+        this.createIndex(this.context.rootDir);
+    }
 
+    /**
+     * 差分ビルドの管理情報から、各ページのカテゴリを集める.
+     * @param dir ディレクトリパス
+     * @param order ツリーをたどる順の添字の並び
+     * @param collector カテゴリの登録先
+     */
+    private void collectCategories(final File dir, final int[] order, final CategoryCollector collector) {
+        DirListing listing = DirListing.of(dir);
+        if (listing != null) {
+            for (int i = 0; i < listing.size(); i++) {
+                File child = new File(dir, listing.name(i));
+                if (listing.isDirectory(i)) {
+                    this.collectCategories(child, childOrder(order, i), collector);
                 } else {
-                    // それ以外
+                    this.collectCategory(child, childOrder(order, i), collector);
                 }
             }
         } else {
+            this.collectCategory(dir, order, collector);
+        }
+    }
 
-            // 見出し行か本文かを判別する
-            if (this.isHeading(line)) {
-                // 見出し行
-                this.tempStr = line;
-            } else {
-                // 本文
-                if (this.itemList.size() == 0) {
-                    this.blockWrite();
-                    if (this.tableStatus == 2) {
-                        // テーブルが終わった
-                        this.tableWrite();
-                        this.tableStatus = 0;
-                    }
-                    int lv = this.checkHeadingLevel(line, orgLine);
-                    if (lv == 0) {
-                        this.bw.write("<p>" + line + "</p>");
-                    } else {
-                        this.bw.write("<p class=\"heading_lv" + lv + "\">" + line + "</p>");
-                    }
-                } else {
-                    this.itemListWrite();
-                    if (this.tableStatus == 2) {
-                        // テーブルが終わった
-                        this.tableWrite();
-                        this.tableStatus = 0;
+    /**
+     * 差分ビルドの管理情報から、ページのカテゴリを登録する.
+     * @param file ファイル
+     * @param order ツリーをたどる順の添字の並び
+     * @param collector カテゴリの登録先
+     */
+    private void collectCategory(final File file, final int[] order, final CategoryCollector collector) {
+        if (file.getName().endsWith(".maki")) {
+            ManifestEntry entry = this.context.manifest.get(file.getPath());
+            if (entry != null) {
+                collector.record(order, file.getPath(), entry.categories);
+            }
+        }
+    }
+
+    /**
+     * 入力ディレクトリ配下の変更を監視して再ビルドする.
+     * 短時間に続いた変更は {@link #WATCH_DEBOUNCE_MILLIS} の間隔でまとめて処理する.
+     * @param inDirPath 入力ディレクトリパス
+     * @param manifestFile 差分ビルドの管理ファイル
+     * @throws IOException 監視時の例外
+     * @throws InterruptedException 監視の待機中に割り込まれた場合
+     */
+    private void watch(final String inDirPath, final File manifestFile)
+            throws IOException, InterruptedException {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            Map<WatchKey, Path> keys = new HashMap<>();
+            this.register(Paths.get(inDirPath), watcher, keys, null);
+            this.log("watching: [" + inDirPath + "]");
+
+            while (true) {
+                WatchKey key = watcher.take();
+                Set<String> changedPaths = new TreeSet<>();
+                Set<String> removedPaths = new TreeSet<>();
+                boolean rescan = false;
+                boolean structureChanged = false;
+
+                // 新しい変更がなくなるまで待ってまとめる
+                while (key != null) {
+                    Path dir = keys.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            rescan = true;
+                            continue;
+                        }
+                        if (dir == null) {
+                            continue;
+                        }
+                        Path path = dir.resolve((Path) event.context());
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                                && Files.isDirectory(path)) {
+                            // 新しいディレクトリは配下も監視して、含まれるファイルをビルドする
+                            this.register(path, watcher, keys, changedPaths);
+                            structureChanged = true;
+                        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            if (keys.containsValue(path)) {
+                                // 目次にはディレクトリも出力している
+                                structureChanged = true;
+                            }
+                            removedPaths.add(path.toString());
+                            changedPaths.remove(path.toString());
+                        } else if (path.toString().endsWith(".maki")) {
+                            changedPaths.add(path.toString());
+                            removedPaths.remove(path.toString());
+                        }
                     }
-                    int lv = this.checkHeadingLevel(line, orgLine);
-                    if (lv == 0) {
-                        this.bw.write("<p>" + line + "</p>");
-                    } else {
-                        this.bw.write("<p class=\"heading_lv" + lv + "\">" + line + "</p>");
+                    if (!key.reset()) {
+                        keys.remove(key);
                     }
+                    key = watcher.poll(WATCH_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                if (rescan) {
+                    // 変更を取りこぼした場合は全ファイルを差分ビルドする
+                    this.log("watch: overflow, rescan all files");
+                    this.context.manifest = BuildManifest.load(manifestFile, this.context.rootDir);
+                    this.allFileBuild(inDirPath);
+                    this.context.categoryCollector.clear();
+                    this.context.manifest.save(manifestFile);
+                    this.writeIndex(inDirPath);
+                    continue;
+                }
+                if (changedPaths.isEmpty() && removedPaths.isEmpty()) {
+                    continue;
+                }
+                this.rebuild(inDirPath, manifestFile, changedPaths, removedPaths, structureChanged);
+            }
+        }
+    }
+
+    /**
+     * ディレクトリを配下のディレクトリも含めて監視対象に登録する.
+     * @param start 登録するディレクトリ
+     * @param watcher 監視サービス
+     * @param keys 監視キーとディレクトリの対応
+     * @param makiPaths 配下の .maki ファイルを追加する先. 不要な場合は null.
+     * @throws IOException 登録時の例外
+     */
+    private void register(final Path start, final WatchService watcher, final Map<WatchKey, Path> keys,
+                          final Set<String> makiPaths) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs)
+                    throws IOException {
+                WatchKey key = dir.register(watcher,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                if (makiPaths != null && file.toString().endsWith(".maki")) {
+                    makiPaths.add(file.toString());
                 }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * 監視で検知した変更を再ビルドする.
+     * 変更されたファイルと、そのタイトルか概要を埋め込んでいるページだけを
+     * ビルドし、目次に出力する内容が変わった場合だけ目次を作り直す.
+     * @param inDirPath 入力ディレクトリパス
+     * @param manifestFile 差分ビルドの管理ファイル
+     * @param changedPaths 作成・変更された .maki ファイルのパス
+     * @param removedPaths 削除されたファイルかディレクトリのパス
+     * @param structureChanged ディレクトリが作成・削除された場合は true
+     */
+    private void rebuild(final String inDirPath, final File manifestFile, final Set<String> changedPaths,
+                         final Set<String> removedPaths, final boolean structureChanged) {
+        long start = System.currentTimeMillis();
+
+        // リンク先のアノテーションを読み込む前に、目次の内容を退避しておく
+        Map<String, PageMeta> before = new HashMap<>();
+        for (String path : changedPaths) {
+            before.put(path, PageMetaCache.peek(new File(path)));
+        }
+
+        BuildManifest previous = this.context.manifest;
+        Set<String> targets = new TreeSet<>(changedPaths);
+        targets.addAll(removedPaths);
+        this.context.manifest = previous.next(targets);
+
+        boolean indexChanged = structureChanged;
+        for (String path : removedPaths) {
+            if (this.context.manifest.remove(path)) {
+                indexChanged = true;
             }
+        }
 
-            this.blockWrite();
-            if (this.tableStatus == 2) {
-                // テーブルが終わった
-                this.tableWrite();
-                this.tableStatus = 0;
+        Set<String> buildPaths = new TreeSet<>(changedPaths);
+        buildPaths.addAll(this.context.manifest.dirtyPaths);
+        int count = 0;
+        for (String path : buildPaths) {
+            File file = new File(path);
+            if (!file.isFile()) {
+                continue;
+            }
+            ManifestEntry old = previous.get(path);
+            this.buildFile(file, new int[0]);
+            count++;
+            if (!changedPaths.contains(path)) {
+                // リンク先が変わっただけなので目次の内容は変わらない
+                continue;
+            }
+            ManifestEntry now = this.context.manifest.get(path);
+            PageMeta meta = before.get(path);
+            try {
+                if (old == null || now == null || !old.categories.equals(now.categories)
+                        || meta == null || !meta.sameIndex(PageMetaCache.contents(file))) {
+                    indexChanged = true;
+                }
+            } catch (IOException e) {
+                this.log(e.getMessage());
+                e.printStackTrace();
+                indexChanged = true;
             }
         }
+        this.context.categoryCollector.clear();
+        this.context.manifest.save(manifestFile);
+
+        if (indexChanged) {
+            this.writeIndex(inDirPath);
+        }
+        this.log("watch: rebuilt [" + count + "] files, index [" + (indexChanged ? "updated" : "unchanged")
+                 + "] in [" + (System.currentTimeMillis() - start) + "] ms");
+    }
+
+    /**
+     * 全ファイルビルドのパイプラインの読み込み段・書き出し段のスレッド数.
+     * ネットワーク越しのファイルなど待ち時間の長い I/O を、変換段の処理と重ねる.
+     */
+    private static final int PIPELINE_IO_THREADS = 4;
+
+    /**
+     * 全ファイルビルドのパイプラインの段の間のキューの大きさ.
+     * 先読みしたファイルと変換済みのページを保持する数の上限になる.
+     */
+    private static final int PIPELINE_QUEUE_SIZE = 32;
+
+    /**
+     * 全ファイルビルドのパイプラインを流れる 1 ページ分の仕事.
+     */
+    private static final class PageJob {
+
+        /**
+         * 入力ファイル.
+         */
+        private final File file;
+
+        /**
+         * ビルド内でのページの並び順.
+         */
+        private final int[] order;
+
+        /**
+         * 出力ファイルのパス.
+         */
+        private final String outputFilePath;
+
+        /**
+         * 差分ビルドの判定結果. 差分ビルドでなければ null.
+         */
+        private ManifestEntry entry = null;
+
+        /**
+         * 先読みした入力ファイル. 1 行ずつ変換する大きなファイルの場合は null.
+         */
+        private MappedLines lines = null;
+
+        /**
+         * 先読み時の例外. なければ null.
+         */
+        private IOException error = null;
+
+        /**
+         * 変換したページのインスタンス(カテゴリとリンク先を持つ).
+         */
+        private Maki page = null;
+
+        /**
+         * 変換した HTML. 出力ファイルを作成しない場合は null.
+         */
+        private ByteArrayOutputStream html = null;
+
+        /**
+         * コンストラクタ.
+         * @param file 入力ファイル
+         * @param order ビルド内でのページの並び順
+         * @param outputFilePath 出力ファイルのパス
+         */
+        PageJob(final File file, final int[] order, final String outputFilePath) {
+            this.file = file;
+            this.order = order;
+            this.outputFilePath = outputFilePath;
+        }
+    }
+
+    /**
+     * 全ファイルビルドのパイプライン.
+     * ディレクトリの走査 → 読み込み(先読み) → 変換(解析と書き出し) → 書き出し
+     * の各段を大きさに上限のあるキューでつなぎ、ファイルの I/O 待ちと変換を重ねる.
+     * 読み込み段と書き出し段は I/O 用のスレッド、変換段は並列数のスレッドで動かす.
+     */
+    private static final class PagePipeline {
+
+        /**
+         * 段の終わりを伝える印.
+         */
+        private static final PageJob END = new PageJob(null, null, null);
+
+        /**
+         * ビルドを行うインスタンス.
+         */
+        private final Maki owner;
+
+        /**
+         * 変換段のスレッド数.
+         */
+        private final int workers;
+
+        /**
+         * 読み込み段へのキュー.
+         */
+        private final BlockingQueue<PageJob> readQueue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_SIZE);
+
+        /**
+         * 変換段へのキュー.
+         */
+        private final BlockingQueue<PageJob> convertQueue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_SIZE);
+
+        /**
+         * 書き出し段へのキュー.
+         */
+        private final BlockingQueue<PageJob> writeQueue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_SIZE);
+
+        /**
+         * 全段のスレッド.
+         */
+        private final List<Thread> threads = new ArrayList<>();
+
+        /**
+         * コンストラクタ.
+         * @param owner ビルドを行うインスタンス
+         * @param workers 変換段のスレッド数
+         */
+        PagePipeline(final Maki owner, final int workers) {
+            this.owner = owner;
+            this.workers = workers;
+        }
+
+        /**
+         * ディレクトリ配下の全ファイルをビルドする.
+         * 全段の処理が終わるまで戻らない.
+         * @param root 入力ディレクトリ
+         */
+        void run(final File root) {
+            this.start("maki-read", PIPELINE_IO_THREADS, this.readQueue, this.convertQueue, this.workers, 0);
+            this.start("maki-convert", this.workers, this.convertQueue, this.writeQueue, PIPELINE_IO_THREADS, 1);
+            this.start("maki-write", PIPELINE_IO_THREADS, this.writeQueue, null, 0, 2);
+            try {
+                this.scan(root, new int[0]);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finish(this.readQueue, PIPELINE_IO_THREADS);
+                for (Thread thread : this.threads) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * ディレクトリを走査し、.maki ファイルを読み込み段へ渡す.
+         * 並び順は逐次ビルドの tree と同じ.
+         * @param dir ディレクトリパス
+         * @param order ツリーをたどる順の添字の並び
+         * @throws InterruptedException 待機中に割り込まれた場合
+         */
+        private void scan(final File dir, final int[] order) throws InterruptedException {
+            DirListing listing = DirListing.of(dir);
+            if (listing != null) {
+                for (int i = 0; i < listing.size(); i++) {
+                    File child = new File(dir, listing.name(i));
+                    if (listing.isDirectory(i)) {
+                        this.scan(child, childOrder(order, i));
+                    } else {
+                        this.page(child, childOrder(order, i));
+                    }
+                }
+            } else {
+                this.page(dir, order);
+            }
+        }
+
+        /**
+         * .maki ファイルであれば読み込み段へ渡す.
+         * @param file ファイル
+         * @param order ツリーをたどる順の添字の並び
+         * @throws InterruptedException 待機中に割り込まれた場合
+         */
+        private void page(final File file, final int[] order) throws InterruptedException {
+            int idx = file.getName().lastIndexOf(".");
+            String ext = file.getName().substring(idx);
+            if (".maki".equals(ext)) {
+                String outputFilePath = file.getParent() + File.separator + file.getName().replace(".maki", ".html");
+                this.readQueue.put(new PageJob(file, order, outputFilePath));
+            }
+        }
+
+        /**
+         * 段のスレッドを開始する.
+         * @param name スレッド名
+         * @param count スレッド数
+         * @param in 受け取るキュー
+         * @param out 次の段へのキュー. 最後の段は null.
+         * @param nextCount 次の段のスレッド数
+         * @param stage 段(0: 読み込み, 1: 変換, 2: 書き出し)
+         */
+        private void start(final String name, final int count,
+                           final BlockingQueue<PageJob> in, final BlockingQueue<PageJob> out,
+                           final int nextCount, final int stage) {
+            final AtomicInteger running = new AtomicInteger(count);
+            for (int i = 0; i < count; i++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            PagePipeline.this.drain(in, out, stage);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            // 最後のスレッドが次の段へ終わりを伝える
+                            if (running.decrementAndGet() == 0 && out != null) {
+                                finish(out, nextCount);
+                            }
+                        }
+                    }
+                }, name + "-" + i);
+                thread.setDaemon(true);
+                this.threads.add(thread);
+                thread.start();
+            }
+        }
+
+        /**
+         * 終わりの印を受け取るまで、キューの仕事を処理して次の段へ渡す.
+         * @param in 受け取るキュー
+         * @param out 次の段へのキュー. 最後の段は null.
+         * @param stage 段(0: 読み込み, 1: 変換, 2: 書き出し)
+         * @throws InterruptedException 待機中に割り込まれた場合
+         */
+        private void drain(final BlockingQueue<PageJob> in, final BlockingQueue<PageJob> out,
+                           final int stage) throws InterruptedException {
+            while (true) {
+                PageJob job = in.take();
+                if (job == END) {
+                    return;
+                }
+                PageJob next = null;
+                try {
+                    if (stage == 0) {
+                        next = this.owner.readPage(job);
+                    } else if (stage == 1) {
+                        next = this.owner.convertPage(job);
+                    } else {
+                        this.owner.writePage(job);
+                    }
+                } catch (RuntimeException e) {
+                    this.owner.log(e.getMessage());
+                    e.printStackTrace();
+                }
+                if (next != null && out != null) {
+                    out.put(next);
+                }
+            }
+        }
+
+        /**
+         * 段の全スレッドへ終わりを伝える.
+         * @param queue 段へのキュー
+         * @param count 段のスレッド数
+         */
+        private static void finish(final BlockingQueue<PageJob> queue, final int count) {
+            for (int i = 0; i < count; i++) {
+                try {
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * パイプラインの読み込み段.
+     * 差分ビルドの判定をして、変換するファイルは先読みしておく.
+     * @param job 1 ページ分の仕事
+     * @return 変換する場合は job. ビルドが不要な場合は null.
+     */
+    private PageJob readPage(final PageJob job) {
+        if (this.context.manifest != null) {
+            try {
+                job.entry = this.context.manifest.check(job.file, job.outputFilePath);
+            } catch (IOException e) {
+                this.log(e.getMessage());
+                e.printStackTrace();
+                return null;
+            }
+            if (job.entry.upToDate) {
+                this.log("skip: " + job.file.getPath());
+                this.context.categoryCollector.record(job.order, job.file.getPath(), job.entry.categories);
+                this.context.manifest.update(job.entry);
+                return null;
+            }
+        }
+
+        // 大きなファイルは 1 行ずつ変換するため読み込まない
+        if (!STREAMING_CONVERTER && job.file.length() < STREAMING_THRESHOLD) {
+            try {
+                job.lines = MappedLines.open(job.file);
+                job.lines.prefetch();
+            } catch (IOException e) {
+                job.error = e;
+            }
+        }
+        return job;
+    }
+
+    /**
+     * パイプラインの変換段.
+     * 先読みしたファイルを解析し、HTML をメモリ上へ書き出す.
+     * @param job 1 ページ分の仕事
+     * @return 書き出し段へ渡す場合は job. 変換段で書き出しまで終えた場合は null.
+     */
+    private PageJob convertPage(final PageJob job) {
+        String[] args = {MODE_MAKI,
+                         job.file.getPath(),
+                         job.outputFilePath};
+        if (job.lines == null && job.error == null) {
+            // 大きなファイルは従来どおり 1 行ずつ変換しながら直接書き出す
+            job.page = new Maki(args, this.context, job.order);
+            this.builtPage(job);
+            return null;
+        }
+
+        Maki page = new Maki(this.context, job.order);
+        page.inputFilePath = job.file.getPath();
+        page.title = job.file.getName();
+        job.page = page;
+        if (job.error != null) {
+            // 入力ファイルを読めない場合は出力ファイルを作成しない
+            page.log(job.error.getMessage());
+            job.error.printStackTrace();
+        } else {
+            ByteArrayOutputStream html = new ByteArrayOutputStream(16 * 1024);
+            try {
+                Utf8Output out = new Utf8Output(Channels.newChannel(html));
+                page.bw = out;
+                try {
+                    page.convert(job.file, job.lines, job.outputFilePath);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                // 変換に失敗したページは空のファイルとする
+                page.log(e.getMessage());
+                e.printStackTrace();
+                html.reset();
+            }
+            this.recordPage(job.file, job.lines);
+            job.lines = null;
+            job.html = html;
+        }
+
+        // ページに書かれていたカテゴリを登録する
+        this.context.categoryCollector.record(job.order, page.inputFilePath, page.pageCategories);
+        return job;
+    }
+
+    /**
+     * パイプラインの書き出し段.
+     * 変換した HTML を出力ファイルへ書き出し、差分ビルドの管理情報を更新する.
+     * @param job 1 ページ分の仕事
+     */
+    private void writePage(final PageJob job) {
+        if (job.html != null) {
+            try (OutputStream os = new FileOutputStream(job.outputFilePath)) {
+                job.html.writeTo(os);
+            } catch (IOException e) {
+                this.log(e.getMessage());
+                e.printStackTrace();
+            }
+            job.html = null;
+        }
+        this.builtPage(job);
+    }
+
+    /**
+     * ビルドしたページを差分ビルドの管理情報へ反映する.
+     * @param job 1 ページ分の仕事
+     */
+    private void builtPage(final PageJob job) {
+        if (this.context.manifest != null) {
+            this.context.manifest.update(job.entry.built(job.page.pageCategories, job.page.pageLinks));
+        }
+    }
+
+    /**
+     * 解析済みのページ(文書木).
+     * 解析処理が作成し、HtmlRenderer がたどって書き出す.
+     * 行中の装飾は解析時に変換済みの文字列として保持する.
+     */
+    private static final class Document {
+
+        /**
+         * タイトル(処理するファイル名).
+         */
+        private final String title;
+
+        /**
+         * 目次の見出しの下線の文字(=, -, ~). tocTitles と同じ並び.
+         */
+        private final StringBuilder tocKinds = new StringBuilder();
+
+        /**
+         * 目次の見出しの文字列.
+         */
+        private final List<String> tocTitles = new ArrayList<>();
+
+        /**
+         * 本文のブロック要素(出現順).
+         */
+        private final List<Node> blocks = new ArrayList<>();
+
+        /**
+         * コンストラクタ.
+         * @param title タイトル
+         */
+        Document(final String title) {
+            this.title = title;
+        }
+
+        /**
+         * 目次の見出しを追加する.
+         * @param prefix 見出しの下線の文字(=, -, ~)
+         * @param title 見出しの文字列
+         */
+        void addToc(final char prefix, final String title) {
+            this.tocKinds.append(prefix);
+            this.tocTitles.add(title);
+        }
+
+        /**
+         * 本文のブロック要素を追加する.
+         * @param node ブロック要素
+         */
+        void add(final Node node) {
+            this.blocks.add(node);
+        }
+    }
+
+    /**
+     * 文書木のブロック要素.
+     */
+    private abstract static class Node {
+
+        /**
+         * 要素を書き出す.
+         * @param renderer 書き出し先
+         * @throws IOException 書き込み時の例外
+         */
+        abstract void render(HtmlRenderer renderer) throws IOException;
+    }
+
+    /**
+     * 見出し.
+     */
+    private static final class HeadingNode extends Node {
+
+        /**
+         * 見出しレベル(1 ～ 3).
+         */
+        private final int level;
+
+        /**
+         * ページ内での見出しレベルごとの通番.
+         */
+        private final int number;
+
+        /**
+         * 見出しの文字列.
+         */
+        private final String text;
+
+        /**
+         * コンストラクタ.
+         * @param level 見出しレベル
+         * @param number 見出しレベルごとの通番
+         * @param text 見出しの文字列
+         */
+        HeadingNode(final int level, final int number, final String text) {
+            this.level = level;
+            this.number = number;
+            this.text = text;
+        }
+
+        @Override
+        void render(final HtmlRenderer renderer) throws IOException {
+            renderer.heading(this);
+        }
+    }
+
+    /**
+     * 本文の段落.
+     */
+    private static final class ParagraphNode extends Node {
+
+        /**
+         * 所属する見出しレベル. 0 なら見出しの配下ではない.
+         */
+        private final int level;
+
+        /**
+         * 本文の文字列.
+         */
+        private final String text;
+
+        /**
+         * コンストラクタ.
+         * @param level 所属する見出しレベル
+         * @param text 本文の文字列
+         */
+        ParagraphNode(final int level, final String text) {
+            this.level = level;
+            this.text = text;
+        }
+
+        @Override
+        void render(final HtmlRenderer renderer) throws IOException {
+            renderer.paragraph(this);
+        }
+    }
+
+    /**
+     * 箇条書き.
+     */
+    private static final class ListNode extends Node {
+
+        /**
+         * 項目. レベル1の項目は文字列、レベル2以降はリストで入れ子にする.
+         */
+        private final List<Object> items;
+
+        /**
+         * コンストラクタ.
+         * @param items 項目
+         */
+        ListNode(final List<Object> items) {
+            this.items = items;
+        }
+
+        @Override
+        void render(final HtmlRenderer renderer) throws IOException {
+            renderer.list(this);
+        }
+    }
+
+    /**
+     * コードブロック.
+     */
+    private static final class CodeNode extends Node {
+
+        /**
+         * 表示する行.
+         */
+        private final List<String> lines;
+
+        /**
+         * コンストラクタ.
+         * @param lines 表示する行
+         */
+        CodeNode(final List<String> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        void render(final HtmlRenderer renderer) throws IOException {
+            renderer.code(this);
+        }
+    }
+
+    /**
+     * 引用ブロック.
+     */
+    private static final class QuoteNode extends Node {
+
+        /**
+         * 表示する行.
+         */
+        private final List<String> lines;
+
+        /**
+         * 引用元.
+         */
+        private final String cite;
+
+        /**
+         * コンストラクタ.
+         * @param lines 表示する行
+         * @param cite 引用元
+         */
+        QuoteNode(final List<String> lines, final String cite) {
+            this.lines = lines;
+            this.cite = cite;
+        }
+
+        @Override
+        void render(final HtmlRenderer renderer) throws IOException {
+            renderer.quote(this);
+        }
+    }
+
+    /**
+     * テーブル.
+     */
+    private static final class TableNode extends Node {
+
+        /**
+         * ヘッダ部のセル.
+         */
+        private final List<String> header;
+
+        /**
+         * データ部の行ごとのセル.
+         */
+        private final List<List<String>> rows;
+
+        /**
+         * コンストラクタ.
+         * @param header ヘッダ部のセル
+         * @param rows データ部の行ごとのセル
+         */
+        TableNode(final List<String> header, final List<List<String>> rows) {
+            this.header = header;
+            this.rows = rows;
+        }
+
+        @Override
+        void render(final HtmlRenderer renderer) throws IOException {
+            renderer.table(this);
+        }
+    }
+
+    /**
+     * 注記(.. note::).
+     */
+    private static final class NoteNode extends Node {
+
+        /**
+         * タイトル.
+         */
+        private final String title;
+
+        /**
+         * 本文.
+         */
+        private final String sentence;
+
+        /**
+         * コンストラクタ.
+         * @param title タイトル
+         * @param sentence 本文
+         */
+        NoteNode(final String title, final String sentence) {
+            this.title = title;
+            this.sentence = sentence;
+        }
+
+        @Override
+        void render(final HtmlRenderer renderer) throws IOException {
+            renderer.note(this);
+        }
+    }
+
+    /**
+     * 画像(.. image::).
+     */
+    private static final class ImageNode extends Node {
+
+        /**
+         * 画像ファイルのパス.
+         */
+        private final String path;
+
+        /**
+         * 幅. 指定がなければ空文字.
+         */
+        private final String width;
+
+        /**
+         * 配置(right, left, center). 指定がなければ空文字.
+         */
+        private final String align;
+
+        /**
+         * コンストラクタ.
+         * @param path 画像ファイルのパス
+         * @param width 幅
+         * @param align 配置
+         */
+        ImageNode(final String path, final String width, final String align) {
+            this.path = path;
+            this.width = width;
+            this.align = align;
+        }
+
+        @Override
+        void render(final HtmlRenderer renderer) throws IOException {
+            renderer.image(this);
+        }
+    }
+
+    /**
+     * ページ内リンク(.. link::).
+     */
+    private static final class LinkNode extends Node {
+
+        /**
+         * リンク先の HTML ファイルのパス.
+         */
+        private final String href;
+
+        /**
+         * リンク先のページタイトル.
+         */
+        private final String title;
+
+        /**
+         * リンク先のページ概要.
+         */
+        private final String outline;
+
+        /**
+         * コンストラクタ.
+         * @param href リンク先の HTML ファイルのパス
+         * @param title リンク先のページタイトル
+         * @param outline リンク先のページ概要
+         */
+        LinkNode(final String href, final String title, final String outline) {
+            this.href = href;
+            this.title = title;
+            this.outline = outline;
+        }
+
+        @Override
+        void render(final HtmlRenderer renderer) throws IOException {
+            renderer.link(this);
+        }
+    }
+
+    /**
+     * 独自のディレクティブが出力する HTML.
+     */
+    private static final class HtmlNode extends Node {
+
+        /**
+         * HTML.
+         */
+        private final String html;
+
+        /**
+         * コンストラクタ.
+         * @param html HTML
+         */
+        HtmlNode(final String html) {
+            this.html = html;
+        }
+
+        @Override
+        void render(final HtmlRenderer renderer) throws IOException {
+            renderer.html(this);
+        }
+    }
+
+    /**
+     * 脚注.
+     */
+    private static final class FootNoteNode extends Node {
+
+        /**
+         * 脚注(変換済みの文字列).
+         */
+        private final List<String> notes;
+
+        /**
+         * コンストラクタ.
+         * @param notes 脚注
+         */
+        FootNoteNode(final List<String> notes) {
+            this.notes = notes;
+        }
+
+        @Override
+        void render(final HtmlRenderer renderer) throws IOException {
+            renderer.footNote(this);
+        }
+    }
+
+    /**
+     * 文書木を HTML に書き出す.
+     * 解析の状態は持たないため、同じ文書木を何度でも書き出せる.
+     */
+    private static final class HtmlRenderer {
+
+        /**
+         * スレッドごとの使い回す生成処理時刻の書式.
+         */
+        private static final ThreadLocal<SimpleDateFormat> DATE_FORMATS = new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            }
+        };
+
+        /**
+         * 書き出し先.
+         */
+        private final PageOutput bw;
+
+        /**
+         * 目次ファイルのパス.
+         */
+        private final String tocFilePath;
+
+        /**
+         * 外部スタイルシートの参照先. null ならページに埋め込む.
+         */
+        private final String stylesheetHref;
+
+        /**
+         * コンストラクタ.
+         * @param bw 書き出し先
+         * @param tocFilePath 目次ファイルのパス
+         * @param stylesheetHref 外部スタイルシートの参照先(null ならページに埋め込む)
+         */
+        HtmlRenderer(final PageOutput bw, final String tocFilePath, final String stylesheetHref) {
+            this.bw = bw;
+            this.tocFilePath = tocFilePath;
+            this.stylesheetHref = stylesheetHref;
+        }
+
+        /**
+         * 書き出し先だけを替えたインスタンスを作成する.
+         * @param out 書き出し先
+         * @return 書き出し先を替えたインスタンス
+         */
+        HtmlRenderer to(final PageOutput out) {
+            return new HtmlRenderer(out, this.tocFilePath, this.stylesheetHref);
+        }
+
+        /**
+         * ページ全体を書き出す.
+         * @param document 文書木
+         * @throws IOException 書き込み時の例外
+         */
+        void render(final Document document) throws IOException {
+            this.head(document);
+            this.toc(document);
+            this.blocks(document.blocks);
+            this.foot();
+        }
+
+        /**
+         * 初期の書き出し.
+         * @param document 文書木
+         * @throws IOException 書き込み時の例外
+         */
+        void head(final Document document) throws IOException {
+            this.bw.write(PAGE_HEAD);
+            this.bw.write(document.title);
+            if (this.stylesheetHref == null) {
+                this.bw.write(PAGE_HEAD_INLINE_STYLE);
+            } else {
+                this.bw.write(PAGE_HEAD_LINK_START, this.stylesheetHref, PAGE_HEAD_LINK_END);
+            }
+        }
+
+        /**
+         * ページの上部の目次を書き出す.
+         * @param document 文書木
+         * @throws IOException 書き込み時の例外
+         */
+        void toc(final Document document) throws IOException {
+            TocWriter toc = new TocWriter(this.bw, this.tocFilePath);
+            toc.start();
+            for (int i = 0; i < document.tocTitles.size(); i++) {
+                toc.heading(document.tocKinds.charAt(i), document.tocTitles.get(i));
+            }
+            toc.end();
+        }
+
+        /**
+         * セグメントバッファへ溜めておいた本文を書き出す.
+         * @param segment セグメントバッファ
+         * @throws IOException 書き込み時の例外
+         */
+        void segment(final SegmentBuffer segment) throws IOException {
+            segment.writeTo(this.bw);
+        }
+
+        /**
+         * 本文のブロック要素を順に書き出す.
+         * @param blocks ブロック要素
+         * @throws IOException 書き込み時の例外
+         */
+        void blocks(final List<Node> blocks) throws IOException {
+            for (int i = 0; i < blocks.size(); i++) {
+                blocks.get(i).render(this);
+            }
+        }
+
+        /**
+         * 最後の書き出し.
+         * @throws IOException 書き込み時の例外
+         */
+        void foot() throws IOException {
+
+            // 生成処理時刻を求める
+            String formattedLdt = DATE_FORMATS.get().format(new Date());
+
+            this.bw.write(PAGE_FOOT_START, formattedLdt, PAGE_FOOT_END);
+        }
+
+        /**
+         * 見出しの書き出し.
+         * @param node 見出し
+         * @throws IOException 書き込み時の例外
+         */
+        void heading(final HeadingNode node) throws IOException {
+            this.bw.write(TAG_PAGE_TOP);
+            if (node.level == 1) {
+                this.bw.write(TAG_H1_START, String.valueOf(node.number), TAG_HEADING_ID_END);
+                this.bw.write(node.text);
+                this.bw.write(TAG_H1_END);
+            } else if (node.level == 2) {
+                this.bw.write(TAG_H2_START, String.valueOf(node.number), TAG_HEADING_ID_END);
+                this.bw.write(node.text);
+                this.bw.write(TAG_H2_END);
+            } else {
+                this.bw.write(TAG_H3_START, String.valueOf(node.number), TAG_HEADING_ID_END);
+                this.bw.write(node.text);
+                this.bw.write(TAG_H3_END);
+            }
+        }
+
+        /**
+         * 本文の段落の書き出し.
+         * @param node 段落
+         * @throws IOException 書き込み時の例外
+         */
+        void paragraph(final ParagraphNode node) throws IOException {
+            if (node.level == 0) {
+                this.bw.write(TAG_P_START, node.text, TAG_P_END);
+            } else {
+                this.bw.write(TAG_P_HEADING_LV[node.level], node.text, TAG_P_END);
+            }
+        }
+
+        /**
+         * 箇条書きの書き出し.
+         * @param node 箇条書き
+         * @throws IOException 書き込み時の例外
+         */
+        void list(final ListNode node) throws IOException {
+
+            this.bw.write(TAG_LIST_START);
+            for (int i = 0; i < node.items.size(); i++) {
+
+                Object lv1Obj = node.items.get(i);
+                if (lv1Obj instanceof String) {
+
+                    this.bw.write(TAG_LI_LV1_START, String.valueOf(lv1Obj), TAG_LI_END);
+
+                } else if (lv1Obj instanceof List) {
+
+                    this.bw.write(TAG_LIST_LV2_START);
+
+                    @SuppressWarnings("unchecked")
+                    List<Object> lv2List = (List<Object>) lv1Obj;
+                    for (int j = 0; j < lv2List.size(); j++) {
+
+                        Object lv2Obj = lv2List.get(j);
+                        if (lv2Obj instanceof String) {
+
+                            this.bw.write(TAG_LI_LV2_START, String.valueOf(lv2Obj), TAG_LI_END);
+
+                        } else if (lv2Obj instanceof List) {
+
+                            this.bw.write(TAG_LIST_LV3_START);
+
+                            @SuppressWarnings("unchecked")
+                            List<String> lv3List = (List<String>) lv2Obj;
+                            for (int k = 0; k < lv3List.size(); k++) {
+
+                                this.bw.write(TAG_LI_LV2_START, String.valueOf(lv3List.get(k)), TAG_LI_END);
+                            }
+
+                            this.bw.write(TAG_LIST_LV3_END);
+                        }
+                    }
+
+                    this.bw.write(TAG_LIST_LV2_END);
+                }
+            }
+
+            this.bw.write(TAG_LIST_END);
+        }
+
+        /**
+         * コードブロックの書き出し.
+         * @param node コードブロック
+         * @throws IOException 書き込み時の例外
+         */
+        void code(final CodeNode node) throws IOException {
+            this.bw.write("<pre class=\"code-box deco\"><code>");
+            for (int i = 0; i < node.lines.size(); i++) {
+                this.writeSyntaxHighlight4J(node.lines.get(i));
+                this.bw.write(TAG_CRLF);
+            }
+            this.bw.write("</code></pre>" + CONST_CRLF);
+        }
+
+        /**
+         * 引用ブロックの書き出し.
+         * @param node 引用ブロック
+         * @throws IOException 書き込み時の例外
+         */
+        void quote(final QuoteNode node) throws IOException {
+            this.bw.write("<blockquote><p><br>" + CONST_CRLF);
+            for (int i = 0; i < node.lines.size(); i++) {
+                this.bw.write(node.lines.get(i) + "<br>");
+            }
+            this.bw.write("<cite>" + node.cite + "</cite>");
+            this.bw.write("</p></blockquote>");
+        }
+
+        /**
+         * コードブロックに表示する Java 言語のシンタックスハイライト処理.
+         * 行を先頭から 1 回だけ走査し、予約語を span で囲んで書き出す.
+         * @param line 対象
+         * @throws IOException ファイル書き込み時の例外
+         */
+        private void writeSyntaxHighlight4J(final String line) throws IOException {
+            int length = line.length();
+            int written = 0;
+            int i = 0;
+            while (i < length) {
+                int matched = SYNTAX_MATCHER_4J.match(line, i);
+                if (matched == 0) {
+                    i++;
+                    continue;
+                }
+                // 予約語の手前までをそのまま書き出す
+                if (written < i) {
+                    this.bw.write(line, written, i - written);
+                }
+                this.bw.write(SYNTAX_START_TAG);
+                this.bw.write(line, i, matched);
+                this.bw.write(SYNTAX_END_TAG);
+                i += matched;
+                written = i;
+            }
+            if (written < length) {
+                this.bw.write(line, written, length - written);
+            }
+        }
+
+        /**
+         * テーブルの書き出し.
+         * @param node テーブル
+         * @throws IOException 書き込み時の例外
+         */
+        void table(final TableNode node) throws IOException {
+
+            this.bw.write("<table class=\"type01\">" + CONST_CRLF);
+            this.bw.write(TAG_TR_START);
+
+            for (int i = 0; i < node.header.size(); i++) {
+                this.bw.write(TAG_TH_START, node.header.get(i), TAG_TH_END);
+            }
+
+            this.bw.write(TAG_TR_END);
+
+            for (int i = 0; i < node.rows.size(); i++) {
+                this.bw.write(TAG_TR_START);
+
+                List<String> row = node.rows.get(i);
+                for (int j = 0; j < row.size(); j++) {
+                    this.bw.write(TAG_TD_START, row.get(j), TAG_TD_END);
+                }
+
+                this.bw.write(TAG_TR_END);
+            }
+
+            this.bw.write("</table>" + CONST_CRLF);
+        }
+
+        /**
+         * 注記の書き出し.
+         * @param node 注記
+         * @throws IOException 書き込み時の例外
+         */
+        void note(final NoteNode node) throws IOException {
+            this.bw.write("<br>" + CONST_CRLF);
+            this.bw.write("<div class=\"box27\">" + CONST_CRLF);
+            this.bw.write("    <span class=\"box-title\">" + node.title + "</span>" + CONST_CRLF);
+            this.bw.write("    <p>" + node.sentence + "</p>" + CONST_CRLF);
+            this.bw.write("</div>" + CONST_CRLF);
+        }
+
+        /**
+         * 画像の書き出し.
+         * @param node 画像
+         * @throws IOException 書き込み時の例外
+         */
+        void image(final ImageNode node) throws IOException {
+            if (!node.align.equals("")) {
+
+                if ("center".equals(node.align)) {
+                    this.bw.write("<div style=\"text-align:center\">" + CONST_CRLF);
+                } else {
+                    if ("right".equals(node.align)) {
+                        this.bw.write("<div style=\"float:right;margin-left:20px;margin-bottom:10px\">" + CONST_CRLF);
+                    } else if ("left".equals(node.align)) {
+                        this.bw.write("<div style=\"float:left; margin-left: 35px; margin-right:20px;margin-bottom:10px\">" + CONST_CRLF);
+                    } else {
+                        this.bw.write("<div style=\"text-align:left; margin-left: 35px;\">" + CONST_CRLF);
+                    }
+                }
+            } else {
+                this.bw.write("<div style=\"margin-left: 35px;\">" + CONST_CRLF);
+            }
+
+            if (!node.width.equals("")) {
+                this.bw.write("<a href=\"" + node.path + "\"><img src=\"" + node.path + "\" width=\"" + node.width + "\"/></a>");
+            } else {
+                this.bw.write("<a href=\"" + node.path + "\"><img src=\"" + node.path + "\"/></a>");
+            }
+            this.bw.write("</div>" + CONST_CRLF);
+        }
+
+        /**
+         * ページ内リンクの書き出し.
+         * @param node ページ内リンク
+         * @throws IOException 書き込み時の例外
+         */
+        void link(final LinkNode node) throws IOException {
+            this.bw.write("<div class=\"inner-link-box\">" + CONST_CRLF);
+            this.bw.write("  <span style=\"font-weight: bold; font-size: 0.8em;\">blog.tmp.maki</span><br>" + CONST_CRLF);
+            this.bw.write("  <span class=\"link-badge\">Inner Link</span><a href=\""
+                                + node.href
+                                +  "\" target=\"_blank\"><b>" + node.title + "</b></a><br>" + CONST_CRLF);
+            this.bw.write("  <div class=\"inner-link-outline\">" + node.outline + "</div>" + CONST_CRLF);
+            this.bw.write("  <span style=\"font-weight: bold; font-size: 0.6em; text-align: right;\">■created by @tomohiko37_i </span>" + CONST_CRLF);
+            this.bw.write("</div>" + CONST_CRLF);
+        }
+
+        /**
+         * 独自のディレクティブが出力する HTML の書き出し.
+         * @param node HTML
+         * @throws IOException 書き込み時の例外
+         */
+        void html(final HtmlNode node) throws IOException {
+            this.bw.write(node.html);
+            this.bw.write(CONST_CRLF);
+        }
+
+        /**
+         * 脚注の書き出し.
+         * @param node 脚注
+         * @throws IOException 書き込み時の例外
+         */
+        void footNote(final FootNoteNode node) throws IOException {
+
+            // 脚注用に少しスペースを空ける
+            this.bw.write("<hr>" + CONST_CRLF);
+            this.bw.write("<div class=\"footnote_title\">脚注</div>" + CONST_CRLF);
+            this.bw.write("<ul style=\"list-style:none\">" + CONST_CRLF);
+
+            for (int i = 0; i < node.notes.size(); i++) {
+                this.bw.write(TAG_FOOTNOTE_START, node.notes.get(i), TAG_FOOTNOTE_END);
+            }
+
+            this.bw.write("</ul>" + CONST_CRLF);
+            this.bw.write("<br>" + CONST_CRLF);
+        }
+    }
+
+    /**
+     * ディレクティブの処理.
+     */
+    private interface DirectiveHandler {
+
+        /**
+         * ディレクティブの行を解析する.
+         * @param maki 解析中のインスタンス
+         * @param line ディレクティブの行
+         * @param argStart 引数(:: の後ろの空白の次)の開始位置
+         * @throws IOException リンク先ファイル読み込み時の例外
+         */
+        void handle(Maki maki, String line, int argStart) throws IOException;
+    }
+
+    /**
+     * ディレクティブの処理(ディレクティブ名がキー).
+     * 組み込みのディレクティブに、ServiceLoader で見つけた独自のディレクティブを加える.
+     * 作成後は変更しない.
+     */
+    private static final Map<String, DirectiveHandler> DIRECTIVES = directives();
+
+    /**
+     * ディレクティブの処理の一覧を作成する.
+     * @return ディレクティブ名と処理のマップ
+     */
+    private static Map<String, DirectiveHandler> directives() {
+        Map<String, DirectiveHandler> directives = new HashMap<>();
+        directives.put("code-block", new DirectiveHandler() {
+            @Override
+            public void handle(final Maki maki, final String line, final int argStart) {
+                maki.codeBlockDirective();
+            }
+        });
+        directives.put("quote", new DirectiveHandler() {
+            @Override
+            public void handle(final Maki maki, final String line, final int argStart) {
+                maki.quoteDirective(line.substring(argStart));
+            }
+        });
+        directives.put("image", new DirectiveHandler() {
+            @Override
+            public void handle(final Maki maki, final String line, final int argStart) {
+                maki.imageDirective(line.substring(argStart));
+            }
+        });
+        directives.put("note", new DirectiveHandler() {
+            @Override
+            public void handle(final Maki maki, final String line, final int argStart) {
+                maki.noteDirective(line.substring(argStart));
+            }
+        });
+        directives.put("link", new DirectiveHandler() {
+            @Override
+            public void handle(final Maki maki, final String line, final int argStart) throws IOException {
+                maki.linkDirective(line.substring(argStart));
+            }
+        });
+
+        // 独自のディレクティブ
+        try {
+            for (final Directive directive : ServiceLoader.load(Directive.class)) {
+                directives.putIfAbsent(directive.name(), new DirectiveHandler() {
+                    @Override
+                    public void handle(final Maki maki, final String line, final int argStart) {
+                        String argument = argStart < line.length() ? line.substring(argStart) : "";
+                        maki.document.add(new HtmlNode(directive.toHtml(argument)));
+                    }
+                });
+            }
+        } catch (ServiceConfigurationError e) {
+            e.printStackTrace();
+        }
+        return directives;
+    }
+
+    /**
+     * ディレクティブの行を解析する.
+     * ディレクティブ名(.. と :: の間)を 1 度だけ取り出して処理を振り分ける.
+     * @param line ディレクティブの行
+     * @throws IOException リンク先ファイル読み込み時の例外
+     */
+    private void directive(final String line) throws IOException {
+        int nameEnd = line.indexOf("::");
+        if (nameEnd != -1) {
+            DirectiveHandler handler = DIRECTIVES.get(directiveName(line, nameEnd));
+            if (handler != null) {
+                handler.handle(this, line, nameEnd + 3);
+            }
+        }
+    }
+
+    /**
+     * ディレクティブの行からディレクティブ名を取り出す.
+     * @param line ディレクティブの行
+     * @param nameEnd ディレクティブ名の後ろの :: の位置
+     * @return ディレクティブ名(先頭の . と空白を除く)
+     */
+    private static String directiveName(final String line, final int nameEnd) {
+        int start = 0;
+        while (start < nameEnd && (line.charAt(start) == '.' || line.charAt(start) == ' ')) {
+            start++;
+        }
+        return line.substring(start, nameEnd).trim();
+    }
+
+    /**
+     * .. code-block:: の解析. コードブロックを開始する.
+     */
+    private void codeBlockDirective() {
+        this.blockState = BLOCK_CODE;
+    }
+
+    /**
+     * .. quote:: の解析. 引用ブロックを開始する.
+     * @param cite 引用元
+     */
+    private void quoteDirective(final String cite) {
+        this.blockState = BLOCK_QUOTE;
+
+        this.blockList.add("cite:" + cite);
+    }
+
+    /**
+     * .. image:: の解析.
+     * @param argument 画像ファイル(パス)名, 幅, 配置
+     */
+    private void imageDirective(final String argument) {
+
+        // 画像ファイル(パス)名を取得する
+        String imagePath = argument;
+        String width = "";
+        String align = "";
+
+        if (imagePath.indexOf(",") != -1) {
+            String[] tokens = imagePath.split(",");
+            imagePath = tokens[0];
+            width = tokens[1].trim();
+
+            // right or left or center までの設定
+            if (tokens.length == 3) {
+                align = tokens[2].trim();
+            }
+        }
+
+        this.document.add(new ImageNode(imagePath, width, align));
+    }
+
+    /**
+     * .. note:: の解析.
+     * @param note タイトル, 本文
+     */
+    private void noteDirective(final String note) {
+        // タイトルと本文を取得する
+        StringTokenizer noteToken = new StringTokenizer(note, ",");
+        String title = noteToken.nextToken();
+        String noteSentence = noteToken.nextToken();
+
+        this.document.add(new NoteNode(title, noteSentence));
+    }
+
+    /**
+     * .. link:: の解析.
+     * @param argument リンク先ファイルの相対パス
+     * @throws IOException リンク先ファイル読み込み時の例外
+     */
+    private void linkDirective(final String argument) throws IOException {
+
+        // リンク先ファイルの相対パスを取得
+        String link = argument;
+        if (".".equals(link.substring(0, 1))) {
+            // 先頭が . の場合は除去する
+            link = link.substring(1);
+        }
+
+        // リンク先のファイルを読み込み、アノテーションを取得する
+        // (差分ビルド用に依存関係として記録しておく)
+        File linkFile = new File(this.linkRoot + link);
+        String[] annotation = null;
+        try {
+            annotation = readLinkAnnotation(linkFile);
+        } finally {
+            this.pageLinks.add(new LinkDependency(linkFile.getPath(), annotation));
+        }
+        String linkTitle = annotation[0];
+        String outline = annotation[1];
+
+        this.document.add(new LinkNode(this.linkRoot + link.replace(".maki", ".html"), linkTitle, outline));
+    }
+
+    /**
+     * 1 行の解析. 確定したブロック要素を文書木へ追加する.
+     * 行の先頭の文字とブロックの状態で処理を振り分け、ブロックの状態が
+     * 変わる場合だけ開いているブロック要素を文書木へ追加する.
+     * コード・引用ブロックの中の行は行中の変換をせずにそのまま保持する.
+     *
+     * @param orgLine オリジナルの1行データ
+     * @param heading 見出し行(次行が見出しの下線)なら true
+     * @param headingLevel 所属する見出しレベル. 0 なら見出しの配下ではない.
+     * @throws IOException リンク先ファイル読み込み時の例外
+     */
+    private void parseLine(final String orgLine,
+                           final boolean heading,
+                           final int headingLevel) throws IOException {
+
+        boolean inBlock = this.blockState == BLOCK_CODE || this.blockState == BLOCK_QUOTE;
+        if (inBlock && (orgLine.length() == 0 || orgLine.charAt(0) == ' ')) {
+            // ブロックの中の空行と先頭が空白の行はオリジナル行のまま保持する
+            this.blockList.add(orgLine);
+            return;
+        }
+
+        // 空行の場合はスルーする
+        if (orgLine.length() == 0) {
+            return;
+        }
+
+        // 行中の装飾・脚注・リンクを変換する
+        String line = this.editLine(orgLine);
+        if (line.length() == 0) {
+            // 変換の結果が空になった行は空行と同じ
+            if (inBlock) {
+                this.blockList.add("");
+            }
+            return;
+        }
+
+        // 先頭の文字で振り分ける
+        switch (line.charAt(0)) {
+            case '=':
+            case '-':
+            case '~':
+                this.endItemList();
+                this.endTable();
+                this.endFootNotes();
+
+                if (line.charAt(0) == '=') {
+                    // ページタイトル
+                    this.document.add(new HeadingNode(1, h1Cnt, this.tempStr));
+                    h1Cnt++;
+                } else if (line.charAt(0) == '-') {
+                    // 見出しレベル2
+                    this.document.add(new HeadingNode(2, h2Cnt, this.tempStr));
+                    h2Cnt++;
+                } else {
+                    // 見出しレベル3
+                    this.document.add(new HeadingNode(3, h3Cnt, this.tempStr));
+                    h3Cnt++;
+                }
+                break;
+
+            case '@':
+                // アノテーションの場合
+                if (line.indexOf("@category:") != -1) {
+                    // 「カテゴリ」アノテーションの場合
+                    // カンマ(,)区切りでカテゴリが書かれている場合は、
+                    // それぞれ分断して全部 Map に保存しておく。
+                    String[] categories = line.substring(10).split(",");
+                    for (String category : categories) {
+                        category = category.trim();
+                        this.log("●category: " + category);
+                        this.pageCategories.add(category);
+                    }
+                }
+                break;
+
+            case '*':
+                this.endBlock();
+                this.endTable();
+
+                // レベル1箇条書き
+                this.itemList.add(line.trim().substring(2));
+                this.blockState = BLOCK_LIST;
+                break;
+
+            case '.':
+                this.endItemList();
+                this.endTable();
+
+                // ディレクティブ
+                this.directive(line);
+                break;
+
+            case '+':
+                this.endItemList();
+
+                // テーブル対応(1)
+                // 先頭が + の場合は一番上か，一番下か，ヘッダとデータの区切りか，
+                // 行の区切りのいずれか。
+                if (this.tableStatus == TABLE_NONE) {
+                    // 1 行目が来た
+                    this.tableStatus = TABLE_HEADER; // ヘッダが始まった
+                } else if (this.tableStatus == TABLE_HEADER) {
+                    // データに切り替わる
+                    this.tableStatus = TABLE_BODY;
+                }
+                break;
+
+            case '|':
+                // テーブルの中の実際の要素行
+                if (this.tableStatus == TABLE_HEADER) {
+                    // この行はヘッダ部である。
+                    this.tableHeader = line;
+                } else if (this.tableStatus == TABLE_BODY) {
+                    // データ部である
+                    this.tableDataList.add(line);
+                }
+                break;
+
+            case ' ':
+                // 先頭が空白の場合はレベル2以降の箇条書き
+                if (line.indexOf("    * ") != -1) {
+
+                    // レベル3
+
+                    // 最後の要素を取得する
+                    Object obj = this.itemList.get(this.itemList.size() - 1);
+                    if (obj instanceof String) {
+
+                        // レベル1の次にいきなりレベル3はないはず
+
+                    } else if (obj instanceof List) {
+
+                        // レベル2のリストを取得する
+                        @SuppressWarnings("unchecked")
+                        List<Object> tmpLv2 = (List<Object>) obj;
+
+                        // レベル2のリストの最後を取得する
+                        Object objL2Last = tmpLv2.get(tmpLv2.size() - 1);
+                        if (objL2Last instanceof String) {
+
+                            // 最後が文字列だったら新しいリストを作って格納する
+                            List<String> tmp = new ArrayList<String>();
+                            tmp.add(line.trim().substring(2));
+                            tmpLv2.add(tmp);
+
+                        } else if (objL2Last instanceof List) {
+
+                            // リストだったら追加する
+                            @SuppressWarnings("unchecked")
+                            List<Object> l3List = (List<Object>) objL2Last;
+                            l3List.add(line.trim().substring(2));
+                        }
+                    }
+
+                } else if (line.indexOf("  * ") != -1) {
+
+                    // レベル2
+
+                    // 最後の要素を取得する
+                    Object obj = this.itemList.get(this.itemList.size() - 1);
+                    if (obj instanceof String) {
+
+                        // 最後が文字列だったら新しいリストを作って格納する
+                        List<Object> tmp = new ArrayList<Object>();
+                        tmp.add(line.trim().substring(2));
+                        this.itemList.add(tmp);
+
+                    } else if (obj instanceof List) {
+
+                        // 最後がリストだったらリストへ追加する
+                        @SuppressWarnings("unchecked")
+                        List<Object> tmp = (List<Object>) obj;
+                        tmp.add(line.trim().substring(2));
+                    }
+
+                } else {
+                    // それ以外
+                }
+                break;
+
+            default:
+                // 見出し行か本文かを判別する
+                this.endBlock();
+                this.endTable();
+                if (heading) {
+                    // 見出し行
+                    this.tempStr = line;
+                } else {
+                    // 本文
+                    this.endItemList();
+                    this.document.add(new ParagraphNode(headingLevel, line));
+                }
+                break;
+        }
+    }
+
+    /**
+     * 行の種別と所属する見出しレベルの索引を作成する.
+     * backupList を 1 回だけ走査し、行番号で引けるようにしておく.
+     */
+    private void createLineIndex() {
+        int size = this.backupList.size();
+        if (this.lineRoles.length < size) {
+            this.lineRoles = new byte[size];
+            this.lineHeadingLevels = new byte[size];
+        }
+
+        int nowLv = 0;
+        for (int i = 0; i < size; i++) {
+            int prefix = this.backupList.first(i);
+            this.lineRoles[i] = (byte) lineRole(prefix);
+            if (this.lineRoles[i] == LINE_ROLE_UNDERLINE) {
+                nowLv = underlineLevel((char) prefix);
+            }
+            this.lineHeadingLevels[i] = (byte) nowLv;
+        }
+
+        // 次行が見出しの下線であれば、その本文は見出し行になる
+        for (int i = 0; i < size - 1; i++) {
+            if (this.lineRoles[i] == LINE_ROLE_PARAGRAPH
+                    && this.lineRoles[i + 1] == LINE_ROLE_UNDERLINE) {
+                this.lineRoles[i] = LINE_ROLE_TITLE;
+            }
+        }
+    }
+
+    /**
+     * 行の種別を判定する(次行による見出しの判定は含まない).
+     * @param line 行. null の場合は空行とする.
+     * @return 行の種別
+     */
+    private static int lineRole(final String line) {
+        if (line == null || line.length() == 0) {
+            return LINE_ROLE_BLANK;
+        }
+        return lineRole(line.charAt(0));
+    }
+
+    /**
+     * 行の先頭の文字から行の種別を判定する(次行による見出しの判定は含まない).
+     * @param prefix 行の先頭の文字. 空行の場合は -1.
+     * @return 行の種別
+     */
+    private static int lineRole(final int prefix) {
+        if (prefix == -1) {
+            return LINE_ROLE_BLANK;
+        }
+        if (prefix == '=' || prefix == '-' || prefix == '~') {
+            return LINE_ROLE_UNDERLINE;
+        } else if (prefix == '.') {
+            return LINE_ROLE_DIRECTIVE;
+        } else if (prefix == '@' || prefix == '*' || prefix == '+'
+                || prefix == '|' || prefix == ' ') {
+            return LINE_ROLE_OTHER;
+        }
+        return LINE_ROLE_PARAGRAPH;
+    }
+
+    /**
+     * 見出しの下線の文字から見出しレベルを求める.
+     * @param prefix 下線の文字(=, -, ~)
+     * @return 見出しレベル. 下線の文字でなければ 0.
+     */
+    private static int underlineLevel(final char prefix) {
+        if (prefix == '=') {
+            return 1;
+        } else if (prefix == '-') {
+            return 2;
+        } else if (prefix == '~') {
+            return 3;
+        }
+        return 0;
+    }
+
+    /**
+     * 1 行ずつ読み込みながら変換する(ファイル全体を保持しない).
+     * 目次の見出しは解析しながら集め、本文はセグメントバッファへ書き出しておく.
+     * ページの最後に、目次を本文の前の枠へ書き出してから本文をつなぐ.
+     * 見出し行の判定には次の 1 行だけを先読みする.
+     * @param file 入力ファイル
+     * @param renderer 書き出し先
+     * @throws IOException 読み込み・書き込み時の例外
+     */
+    private void streamConvert(final File file, final HtmlRenderer renderer) throws IOException {
+        SegmentBuffer segment = new SegmentBuffer();
+        try {
+            // 解析と本文の書き出し
+            Utf8Output body = new Utf8Output(segment);
+            try {
+                HtmlRenderer bodyRenderer = renderer.to(body);
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(file), "utf-8"))) {
+                    this.streamLines(br, bodyRenderer);
+                }
+                this.endDocument();
+                bodyRenderer.blocks(this.document.blocks);
+            } finally {
+                body.close();
+            }
+
+            // 目次ができたので、目次の後ろに本文をつなぐ
+            renderer.head(this.document);
+            renderer.toc(this.document);
+            renderer.segment(segment);
+            renderer.foot();
+        } finally {
+            segment.discard();
+        }
+    }
+
+    /**
+     * 1 行ずつ読み込みながら解析と書き出しをする.
+     * 確定したブロック要素はその都度書き出して文書木から外す.
+     * @param br 入力ファイルの読み込み
+     * @param renderer 書き出し先
+     * @throws IOException 読み込み・書き込み時の例外
+     */
+    private void streamLines(final BufferedReader br, final HtmlRenderer renderer) throws IOException {
+        String next = br.readLine();
+        if (next != null) {
+            next = this.escapeHtml(next);
+        }
+        int nextRole = lineRole(next);
+        int nowLv = 0;
+        String prev = "";
+        while (next != null) {
+            String line = next;
+            int role = nextRole;
+            next = br.readLine();
+            if (next != null) {
+                next = this.escapeHtml(next);
+            }
+            nextRole = lineRole(next);
+
+            if (role == LINE_ROLE_UNDERLINE) {
+                nowLv = underlineLevel(line.charAt(0));
+                // 目次の見出し(下線の前の行)
+                this.document.addToc(line.charAt(0), prev);
+            }
+            boolean heading = role == LINE_ROLE_PARAGRAPH && nextRole == LINE_ROLE_UNDERLINE;
+            // 解析と書き出し
+            this.parseLine(line, heading, nowLv);
+            renderer.blocks(this.document.blocks);
+            this.document.blocks.clear();
+            prev = line;
+        }
+    }
+
+    /**
+     * 指定した行がどの見出し配下にあるか判定.
+     * @param index 行番号(backupList の添字)
+     * @return 見出しレベル. 0 なら見出しではない.
+     */
+    private int checkHeadingLevel(final int index) {
+        return this.lineHeadingLevels[index];
+    }
+
+    /**
+     * 指定した行が見出し行かどうか判別する.
+     * @param index 行番号(backupList の添字)
+     * @return 見出し行なら true を返す
+     */
+    private boolean isHeading(final int index) {
+        return this.lineRoles[index] == LINE_ROLE_TITLE;
+    }
+
+    /**
+     * ページの最後の解析. 未確定のブロック要素を文書木へ追加する.
+     */
+    private void endDocument() {
+        this.endItemList();
+        this.endTable();
+        this.endBlock();
+        this.endFootNotes();
+    }
+
+    /**
+     * 箇条書きの終わり. 箇条書きの途中であれば箇条書きを文書木へ追加する.
+     */
+    private void endItemList() {
+        if (this.blockState != BLOCK_LIST) {
+            return;
+        }
+        this.blockState = BLOCK_PARAGRAPH;
+        this.document.add(new ListNode(this.itemList));
+        this.itemList = new ArrayList<Object>();
+    }
+
+    /**
+     * ブロックの終わり. コードブロックまたは引用ブロックの途中であれば文書木へ追加する.
+     * ブロックの先頭と最後の空行は表示しない.
+     */
+    private void endBlock() {
+
+        if (this.blockState != BLOCK_CODE && this.blockState != BLOCK_QUOTE) {
+            return;
+        }
+        boolean codeBlock = this.blockState == BLOCK_CODE;
+        this.blockState = BLOCK_PARAGRAPH;
+
+        if (this.blockList.size() == 0) {
+            return;
+        }
+
+        List<String> lines = new ArrayList<String>();
+        String cite = "";
+        for (int i = 0; i < this.blockList.size(); i++) {
+            String line = this.blockList.get(i);
+            if (!codeBlock && line.indexOf("cite:") != -1) {
+                cite = line.substring(5);
+            } else if ((i != 0 && i != this.blockList.size() - 1) || line.length() != 0) {
+                lines.add(line);
+            }
+        }
+        if (codeBlock) {
+            this.document.add(new CodeNode(lines));
+        } else {
+            this.document.add(new QuoteNode(lines, cite));
+        }
+        // 初期化
+        this.blockList = new ArrayList<String>();
+    }
+
+    /**
+     * 複数のキーワードを 1 回の走査で照合するためのトライ木.
+     * キーワードは ASCII 文字のみを想定している.
+     */
+    private static final class KeywordMatcher {
+
+        /**
+         * 遷移表の文字数(ASCII).
+         */
+        private static final int CHAR_RANGE = 128;
+
+        /**
+         * 遷移表. [ノード][文字] で次のノードを引く. 0 は遷移なし.
+         */
+        private final int[][] next;
+
+        /**
+         * ノードで終わるキーワードの長さ. 0 はキーワードの終端ではない.
+         */
+        private final int[] accept;
+
+        /**
+         * コンストラクタ.
+         * @param keywords キーワード
+         */
+        KeywordMatcher(final String[] keywords) {
+            int maxNodes = 1;
+            for (String keyword : keywords) {
+                maxNodes += keyword.length();
+            }
+            int[][] work = new int[maxNodes][];
+            int[] workAccept = new int[maxNodes];
+            work[0] = new int[CHAR_RANGE];
+            int nodeCnt = 1;
+            for (String keyword : keywords) {
+                int node = 0;
+                for (int i = 0; i < keyword.length(); i++) {
+                    char c = keyword.charAt(i);
+                    if (work[node][c] == 0) {
+                        work[nodeCnt] = new int[CHAR_RANGE];
+                        work[node][c] = nodeCnt;
+                        nodeCnt++;
+                    }
+                    node = work[node][c];
+                }
+                workAccept[node] = keyword.length();
+            }
+            this.next = Arrays.copyOf(work, nodeCnt);
+            this.accept = Arrays.copyOf(workAccept, nodeCnt);
+        }
+
+        /**
+         * 指定位置から始まる最長のキーワードを探す.
+         * @param line 対象の行
+         * @param start 開始位置
+         * @return 一致したキーワードの長さ. 一致しなければ 0.
+         */
+        int match(final String line, final int start) {
+            int node = 0;
+            int matched = 0;
+            for (int i = start; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c >= CHAR_RANGE) {
+                    break;
+                }
+                node = this.next[node][c];
+                if (node == 0) {
+                    break;
+                }
+                if (this.accept[node] != 0) {
+                    matched = this.accept[node];
+                }
+            }
+            return matched;
+        }
+    }
+
+    /**
+     * ページのスタイルシート(インラインの style 要素と maki.css の共通の内容).
+     */
+    private static final String PAGE_STYLE =
+            "      body {margin-right: auto; margin-left: auto; width: 800px; " +
+                "background-color: #fedadf; font-family: Lato, 'メイリオ', 'Meiryo',"+
+                "'ヒラギノ丸ゴ Pro W4','ヒラギノ丸ゴ Pro','Hiragino Maru Gothic Pro', 'ヒラギノ角ゴ Pro W3', 'Hiragino Kaku Gothic Pro', sans-self " +
+                "!important; font-size: 1.0em; -webkit-font-smoothing: antialiased;}" + CONST_CRLF
+            + "      h1 {position: relative; margin: 0 0 1.5em; padding: 0.8em; " +
+                "background: #B92A2C; color: #fff; font-size: 1.143em; font-weight: bold; " +
+                "border-radius: 5px; -webkit-border-radius: 5px; -moz-border-radius: 5px;}" + CONST_CRLF
+            + "      h1:after {position: absolute; bottom: -15px; left: 10%; z-index: 90; " +
+                "margin-left: -15px; border-top: 15px solid #B92A2C; border-left: 15px solid transparent; " +
+                "border-bottom: 0; content: \"\";}" + CONST_CRLF
+            + "      h2 {position: relative; margin: 10 10 1.5em; padding: 0.8em 0 0.8em 1.5em; " +
+                "border: 1px solid #B92A2C; font-size: 1.143em; font-weight: bold; background: #ffb7b8;" +
+                "border-radius: 5px; -webkit-border-radius: 5px; -moz-border-radius: 5px;}" + CONST_CRLF
+            + "      h2:before {content: \"\"; position: absolute; background: #B92A2C; " +
+                "top: 50%; left: 0.5em; margin-top: -15px; height: 30px; width: 8px; " +
+                "border-radius: 2px; -webkit-border-radius: 2px; -moz-border-radius: 2px;}" + CONST_CRLF
+            + "      h3 {margin: 0 0 1.0em; padding: 0.4em; border-left: 7px solid #B92A2C; " +
+                "border-bottom: 1px dashed #B92A2C; font-size: 1.0em; font-weight: bold; margin-left: 25px;}"
+            + "      code {font-family: Menlo, Consolas, 'DejaVu Sans Mono', monospace; " +
+                "font-size: 14px; line-height: 1.4;}"
+            + "      .code-box {margin-left: 35px; background-color: #eee; padding: 0.8em; " +
+                "border:1px solid #A8A8A8;border-radius: 6px; -webkit-border-radius: 6px; -moz-border-radius: 6px; overflow: auto;}"
+            + "      .inner-link-box {margin-left: 35px; background-color: #eee; padding: 0.8em; border:1px solid #A8A8A8;}"
+            + "      .inner-link-outline {margin-left: 85px; font-size: 0.7em;}"
+            + "      hr {margin-left: 35px; border: none; border-top: dashed 1px #A8A8A8; height: 1px; " +
+                "color: #FFFFFF; margin: 0 6 0 6;}" + CONST_CRLF
+            + "      .footnote {font-size: 0.8em;}" + CONST_CRLF
+            + "      .supText {font-size: 0.6em; vertical-align: super; " +
+                "position: relative; top: -0.1em; color: #B92A2C}" + CONST_CRLF
+            + "      .footer {width: auto; height: 25px; line-height: 25px; " +
+                "background-color: #B92A2C; color: #fff; font-size: 0.9em; text-align: right;}" + CONST_CRLF
+            + "      table.type01 {margin-left: 35px; border-collapse: separate;" +
+                " border-spacing: 1px; text-align: center; line-height: 1.5;}" + CONST_CRLF
+            + "      table.type01 th {padding: 10px; font-weight: normal; vertical-align: top;" +
+                " color: #fff; background: #B92A2C;}" + CONST_CRLF
+            + "      table.type01 td {padding: 10px; font-weight: normal; vertical-align: top;" +
+                " border-bottom: 1px solid #ccc; background: #eee;}" + CONST_CRLF
+            //this.bw.write("      img {margin-left: 35px; max-width: 95%; border: 1px #B92A2C solid;}" + CONST_CRLF);
+            + "      img {max-width: 95%; border: 1px #B92A2C solid;}" + CONST_CRLF
+            + "      .footnote_title {margin-left: 35px; font-weight: bold;}" + CONST_CRLF
+            + "      .heading_lv1 {margin-left: 15px;}" + CONST_CRLF
+            + "      .heading_lv2 {margin-left: 15px;}" + CONST_CRLF
+            + "      .heading_lv3 {margin-left: 25px;}" + CONST_CRLF
+            + "     p {text-indent: 1em;}" + CONST_CRLF
+            + "     a {text-decoration: none;}" + CONST_CRLF
+            + "      .left_indent {margin-left: 20px;}" + CONST_CRLF
+            + "      .toc {font-size: 0.8em;}" + CONST_CRLF
+            + "      .page_top {font-size: 0.8em; text-align: right; }" + CONST_CRLF
+            + "      .box27 {margin-left: 35px; position: relative; background-color: #eee; padding: 0.8em; border: solid 2px #B92A2C;}" + CONST_CRLF
+            + "      .box27 .box-title {position: absolute; display: inline-block; top: -27px;"
+                + " left: -2px; padding: 0 9px; height: 25px; line-height: 25px; vertical-align: middle;"
+                + " font-size: 12px; background: #B92A2C; color: #ffffff; font-weight: normal;"
+                + " border-radius: 5px 5px 0 0;}" + CONST_CRLF
+            + "      .box27 p { margin: 0; padding: 0;}" + CONST_CRLF
+            + "      .sankou-badge, .link-badge { padding: 1px 6px; margin-right: 8px; margin-left: 1px; font-size: 70%; color: white; "
+                + "border-radius: 2px; box-shadow: 0 0 3px #ddd; white-space: nowrap; }" + CONST_CRLF
+            + "      .link-badge { background-color: #58ACFA; }"
+            + "      .sankou-badge { background-color: #B92A2C; }"
+            + "      .code-box.deco::-webkit-scrollbar { height: 10px; }" + CONST_CRLF
+            + "      .code-box.deco::-webkit-scrollbar-track { border-radius: 50px; background: #eee; }" + CONST_CRLF
+            + "      .code-box.deco::-webkit-scrollbar-thumb { border-radius: 10px; background: #A8A8A8; }" + CONST_CRLF
+            + "      .marker_yellow_hoso { background: linear-gradient(transparent 60%, #ffff66 60%); font-weight: bold;}" + CONST_CRLF
+            + "      .important_sentence { color: red; text-decoration: underline; font-weight: bold;}" + CONST_CRLF
+            + "      .bold_sentence { text-decoration: underline; font-weight: bold;}" + CONST_CRLF
+            + "      .text_strike {text-decoration: line-through;}" + CONST_CRLF
+            + "      .strong_impact { background: linear-gradient(transparent 80%, #ffff66 80%); font-weight: bold; font-size: 2.5em}" + CONST_CRLF
+            + "       blockquote { margin-left: 35px; position: relative; padding: 5px 10px 5px 32px; width: 721px; "
+                + "font-style: italic; background: #ffcce5; border-bottom: solid 3px #B92A2C; border-top: solid 1px #B92A2C; }" + CONST_CRLF
+            + "       blockquote:before{ display: inline-block; position: absolute; top: 10px; left: -15px; "
+                + "width: 100px; height: 30px; vertical-align: middle; text-align: center; content: \"Quote\"; "
+                + "font-family: FontAwesome; color: #FFF; font-size: 18px; line-height: 30px; background: #B92A2C; font-weight: 900; }" + CONST_CRLF
+            + "       blockquote:after{ position: absolute; content: ''; top: 40px; left: -15px; border: none; "
+                + "border-bottom: solid 8px transparent; border-right: solid 15px #daaa64; }" + CONST_CRLF
+            + "       blockquote p { position: relative; padding: 0; margin: 10px 0; z-index: 3; line-height: 1.7; }" + CONST_CRLF
+            + "       blockquote cite { display: block; text-align: right; color: #888888; font-size: 0.9em; }" + CONST_CRLF
+            + "      .help {font-size: 0.4em; text-align: right}" + CONST_CRLF;
+
+    /**
+     * ページ先頭の固定部分(title 要素の開始タグまで).
+     */
+    private static final byte[] PAGE_HEAD = utf8("<!DOCTYPE html>" + CONST_CRLF
+            + "<html lang=\"ja\">" + CONST_CRLF
+            + "<head>" + CONST_CRLF
+            + "  <meta charset=\"UTF-8\"/>" + CONST_CRLF
+            + "  <title>");
+
+    /**
+     * Web フォントの読み込み.
+     */
+    private static final String PAGE_FONT_LINK =
+            "<link rel=\"stylesheet\" type=\"text/css\" href=\"https://fonts.googleapis.com/css?family=Lato\" />";
+
+    /**
+     * title 要素の終了タグから body 要素の開始タグまで(スタイルシートをインラインで出力する場合).
+     */
+    private static final byte[] PAGE_HEAD_INLINE_STYLE = utf8("</title>" + CONST_CRLF
+            + PAGE_FONT_LINK
+            + "  <style type=\"text/css\">" + CONST_CRLF
+            + PAGE_STYLE
+            + "  </style>" + CONST_CRLF
+            + "</head>" + CONST_CRLF
+            + "<body>" + CONST_CRLF);
+
+    /**
+     * title 要素の終了タグから maki.css の href まで(スタイルシートを外部ファイルにする場合).
+     */
+    private static final byte[] PAGE_HEAD_LINK_START = utf8("</title>" + CONST_CRLF
+            + PAGE_FONT_LINK
+            + "<link rel=\"stylesheet\" type=\"text/css\" href=\"");
+
+    /**
+     * maki.css の href の後ろから body 要素の開始タグまで(スタイルシートを外部ファイルにする場合).
+     */
+    private static final byte[] PAGE_HEAD_LINK_END = utf8("\" />" + CONST_CRLF
+            + "</head>" + CONST_CRLF
+            + "<body>" + CONST_CRLF);
+
+    /**
+     * ページ末尾の固定部分(生成日時の前まで).
+     */
+    private static final byte[] PAGE_FOOT_START = utf8("<br>" + CONST_CRLF
+            + "<div class=\"page_top\"><a href=\"#\">^page top</a></div>" + CONST_CRLF
+            + "<div class=\"footer\">Last Generated:");
+
+    /**
+     * ページ末尾の固定部分(生成日時の後ろから).
+     */
+    private static final byte[] PAGE_FOOT_END = utf8("／Generated by Maki "
+            + CONST_VERSION + "&nbsp;</div>" + CONST_CRLF
+            + "<div class=\"help\"><code>[``]: code</code>&nbsp;&nbsp;&nbsp;"
+            + "<code>[##]: ym + u</code>&nbsp;&nbsp;&nbsp;"
+            + "<code>[@@]: r + b + u</code>&nbsp;&nbsp;&nbsp;<code>"
+            + "[&&]: b + u</code>&nbsp;&nbsp;&nbsp;<code>"
+            + "[%%]: strike</code>&nbsp;&nbsp;&nbsp;<code>"
+            + "[__]: strong big</code></div>"
+            + "</body>" + CONST_CRLF
+            + "</html>" + CONST_CRLF);
+
+    /**
+     * 改行.
+     */
+    private static final byte[] TAG_CRLF = utf8(CONST_CRLF);
+
+    /**
+     * 見出しの前のページ先頭へのリンク.
+     */
+    private static final byte[] TAG_PAGE_TOP = utf8("<div class=\"page_top\"><a href=\"#\">^page top</a></div>" + CONST_CRLF);
+
+    /**
+     * 見出し1の開始タグ(id の番号の前まで).
+     */
+    private static final byte[] TAG_H1_START = utf8("<h1 id=\"h1_");
+
+    /**
+     * 見出し2の開始タグ(id の番号の前まで).
+     */
+    private static final byte[] TAG_H2_START = utf8("<h2 id=\"h2_");
+
+    /**
+     * 見出し3の開始タグ(id の番号の前まで).
+     */
+    private static final byte[] TAG_H3_START = utf8("<h3 id=\"h3_");
+
+    /**
+     * 見出しの開始タグ(id の番号の後ろ).
+     */
+    private static final byte[] TAG_HEADING_ID_END = utf8("\">");
+
+    /**
+     * 見出し1の終了タグ.
+     */
+    private static final byte[] TAG_H1_END = utf8("</h1>" + CONST_CRLF);
+
+    /**
+     * 見出し2の終了タグ.
+     */
+    private static final byte[] TAG_H2_END = utf8("</h2>" + CONST_CRLF);
+
+    /**
+     * 見出し3の終了タグ.
+     */
+    private static final byte[] TAG_H3_END = utf8("</h3>" + CONST_CRLF);
+
+    /**
+     * 本文の開始タグ.
+     */
+    private static final byte[] TAG_P_START = utf8("<p>");
+
+    /**
+     * 見出し配下の本文の開始タグ(見出しレベルが添字).
+     */
+    private static final byte[][] TAG_P_HEADING_LV = {
+        null,
+        utf8("<p class=\"heading_lv1\">"),
+        utf8("<p class=\"heading_lv2\">"),
+        utf8("<p class=\"heading_lv3\">")};
+
+    /**
+     * 本文の終了タグ.
+     */
+    private static final byte[] TAG_P_END = utf8("</p>");
+
+    /**
+     * 箇条書きの開始タグ.
+     */
+    private static final byte[] TAG_LIST_START = utf8("<ul class=\"left_indent\">" + CONST_CRLF);
+
+    /**
+     * 箇条書きの終了タグ.
+     */
+    private static final byte[] TAG_LIST_END = utf8("</ul>" + CONST_CRLF);
+
+    /**
+     * 箇条書きレベル2の開始タグ.
+     */
+    private static final byte[] TAG_LIST_LV2_START = utf8("    <ul>" + CONST_CRLF);
+
+    /**
+     * 箇条書きレベル2の終了タグ.
+     */
+    private static final byte[] TAG_LIST_LV2_END = utf8("    </ul>" + CONST_CRLF);
+
+    /**
+     * 箇条書きレベル3の開始タグ.
+     */
+    private static final byte[] TAG_LIST_LV3_START = utf8("      <ul>" + CONST_CRLF);
+
+    /**
+     * 箇条書きレベル3の終了タグ.
+     */
+    private static final byte[] TAG_LIST_LV3_END = utf8("      </ul>" + CONST_CRLF);
+
+    /**
+     * 箇条書きレベル1の項目の開始タグ.
+     */
+    private static final byte[] TAG_LI_LV1_START = utf8("  <li>");
+
+    /**
+     * 箇条書きレベル2, 3の項目の開始タグ.
+     */
+    private static final byte[] TAG_LI_LV2_START = utf8("      <li>");
+
+    /**
+     * 箇条書きの項目の終了タグ.
+     */
+    private static final byte[] TAG_LI_END = utf8("</li>" + CONST_CRLF);
+
+    /**
+     * 脚注の開始タグ.
+     */
+    private static final byte[] TAG_FOOTNOTE_START = utf8("<li><span class=\"footnote\">");
+
+    /**
+     * 脚注の終了タグ.
+     */
+    private static final byte[] TAG_FOOTNOTE_END = utf8("</span></li>" + CONST_CRLF);
+
+    /**
+     * テーブルの行の開始タグ.
+     */
+    private static final byte[] TAG_TR_START = utf8("  <tr>" + CONST_CRLF);
+
+    /**
+     * テーブルの行の終了タグ.
+     */
+    private static final byte[] TAG_TR_END = utf8("  </tr>" + CONST_CRLF);
+
+    /**
+     * テーブルのヘッダの開始タグ.
+     */
+    private static final byte[] TAG_TH_START = utf8("    <th>");
+
+    /**
+     * テーブルのヘッダの終了タグ.
+     */
+    private static final byte[] TAG_TH_END = utf8("</th>" + CONST_CRLF);
+
+    /**
+     * テーブルのデータの開始タグ.
+     */
+    private static final byte[] TAG_TD_START = utf8("    <td>");
+
+    /**
+     * テーブルのデータの終了タグ.
+     */
+    private static final byte[] TAG_TD_END = utf8("</td>" + CONST_CRLF);
+
+    /**
+     * スタイルシートを外部ファイル(maki.css)にするかどうか.
+     * 起動時に -Dmaki.stylesheet=external を指定した場合は外部ファイルにする.
+     */
+    private static final boolean EXTERNAL_STYLESHEET = "external".equals(System.getProperty("maki.stylesheet"));
+
+    /**
+     * 外部ファイルにしたスタイルシートのファイル名(内容のチェックサム付き).
+     * 内容が変わるとファイル名も変わるため、ブラウザのキャッシュが残っていても反映される.
+     */
+    private static final String STYLESHEET_NAME = stylesheetName();
+
+    /**
+     * このJVMで出力済みのスタイルシート.
+     */
+    private static final Set<String> WRITTEN_STYLESHEETS = ConcurrentHashMap.newKeySet();
+
+    /**
+     * ページから maki.css への相対パス. インラインで出力する場合は null.
+     */
+    private String stylesheetHref = null;
+
+    /**
+     * 文字列を UTF-8 のバイト列にする.
+     * @param str 文字列
+     * @return UTF-8 のバイト列
+     */
+    private static byte[] utf8(final String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 外部ファイルにしたスタイルシートのファイル名を作成する.
+     * @return maki.(チェックサム).css
+     */
+    private static String stylesheetName() {
+        CRC32C crc = new CRC32C();
+        crc.update(utf8(PAGE_STYLE));
+        return "maki." + Long.toHexString(crc.getValue()) + ".css";
+    }
+
+    /**
+     * スタイルシートを出力し、ページからの相対パスを取得する.
+     * スタイルシートはルートディレクトリ(ない場合は出力ファイルと同じディレクトリ)
+     * に 1 つだけ出力する.
+     * @param rootDir ルートディレクトリ
+     * @param outputFile 出力ファイル
+     * @return ページから maki.css への相対パス
+     * @throws IOException 出力時の例外
+     */
+    private static String writeStylesheet(final String rootDir, final File outputFile) throws IOException {
+        File page = outputFile.getAbsoluteFile();
+        File dir = rootDir == null ? null : new File(rootDir);
+        if (dir == null || !dir.isDirectory()) {
+            dir = page.getParentFile();
+        }
+        File css = new File(dir, STYLESHEET_NAME).getAbsoluteFile();
+        if (WRITTEN_STYLESHEETS.add(css.getPath()) && !css.exists()) {
+            try (OutputStream os = new FileOutputStream(css)) {
+                os.write(utf8(PAGE_STYLE));
+            } catch (IOException e) {
+                WRITTEN_STYLESHEETS.remove(css.getPath());
+                throw e;
+            }
+        }
+        Path from = page.toPath().normalize().getParent();
+        Path to = css.toPath().normalize();
+        return from.relativize(to).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * ページの書き出し先.
+     * 固定部分は事前に UTF-8 にしたバイト列で受け取る.
+     */
+    private abstract static class PageOutput extends Writer {
+
+        /**
+         * UTF-8 のバイト列をそのまま書き出す.
+         * @param bytes UTF-8 のバイト列
+         * @throws IOException 書き出し時の例外
+         */
+        abstract void write(byte[] bytes) throws IOException;
+
+        /**
+         * 固定部分で文字列を挟んで書き出す.
+         * @param prefix 前の固定部分
+         * @param text 文字列
+         * @param suffix 後ろの固定部分
+         * @throws IOException 書き出し時の例外
+         */
+        void write(final byte[] prefix, final String text, final byte[] suffix) throws IOException {
+            this.write(prefix);
+            this.write(text);
+            this.write(suffix);
+        }
+    }
+
+    /**
+     * 呼び出し元の Writer へ書き出すページの書き出し先.
+     * 固定部分のバイト列は 1 度だけ文字列に戻して使い回す.
+     * 呼び出し元の Writer は閉じない.
+     */
+    private static final class WriterOutput extends PageOutput {
+
+        /**
+         * 文字列に戻した固定部分(バイト列の同一性で引く).
+         */
+        private static final Map<byte[], String> DECODED = new ConcurrentHashMap<>();
+
+        /**
+         * 書き出し先.
+         */
+        private Writer out = null;
+
+        /**
+         * 書き出し先を切り替える.
+         * @param out 書き出し先
+         */
+        void target(final Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        void write(final byte[] bytes) throws IOException {
+            String text = DECODED.get(bytes);
+            if (text == null) {
+                text = new String(bytes, StandardCharsets.UTF_8);
+                DECODED.putIfAbsent(bytes, text);
+            }
+            this.out.write(text);
+        }
+
+        @Override
+        public void write(final String str) throws IOException {
+            // null は文字列連結と同じく "null" と書き出す(見出しの文字列がない場合など)
+            this.out.write(String.valueOf(str));
+        }
+
+        @Override
+        public void write(final String str, final int off, final int len) throws IOException {
+            this.out.write(str, off, len);
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) throws IOException {
+            this.out.write(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.flush();
+            this.out = null;
+        }
+    }
+
+    /**
+     * UTF-8 で出力するファイルの書き出し先.
+     * 固定部分は UTF-8 のバイト列のまま、文字列はスレッドごとに使い回す
+     * ダイレクトバッファへ直接エンコードして溜め、FileChannel へまとめて書き出す.
+     * バッファに収まらない大きなバイト列は、溜まっている分と一緒に
+     * ギャザリング書き込みする.
+     */
+    private static final class Utf8Output extends PageOutput {
+
+        /**
+         * バッファの大きさ(バイト).
+         */
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        /**
+         * スレッドごとの使い回すバッファ(使用中は空).
+         */
+        private static final ThreadLocal<ByteBuffer[]> BUFFERS = new ThreadLocal<ByteBuffer[]>() {
+            @Override
+            protected ByteBuffer[] initialValue() {
+                return new ByteBuffer[1];
+            }
+        };
+
+        /**
+         * スレッドごとの使い回すエンコーダ.
+         */
+        private static final ThreadLocal<CharsetEncoder> ENCODERS = new ThreadLocal<CharsetEncoder>() {
+            @Override
+            protected CharsetEncoder initialValue() {
+                return StandardCharsets.UTF_8.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+        };
+
+        /**
+         * 書き出し先.
+         */
+        private final WritableByteChannel channel;
+
+        /**
+         * 書き出し待ちのバッファ.
+         */
+        private ByteBuffer buffer;
+
+        /**
+         * エンコーダ.
+         */
+        private final CharsetEncoder encoder;
+
+        /**
+         * 前回の書き出しの末尾にあった上位サロゲート. なければ 0.
+         */
+        private char leftover = 0;
+
+        /**
+         * コンストラクタ.
+         * @param file 書き出し先のファイル
+         * @throws IOException ファイルを開けない場合
+         */
+        Utf8Output(final File file) throws IOException {
+            this(FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+        }
+
+        /**
+         * コンストラクタ.
+         * @param channel 書き出し先
+         */
+        Utf8Output(final WritableByteChannel channel) {
+            this.channel = channel;
+            ByteBuffer[] pool = BUFFERS.get();
+            if (pool[0] != null) {
+                this.buffer = pool[0];
+                pool[0] = null;
+                this.buffer.clear();
+            } else {
+                this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+            this.encoder = ENCODERS.get();
+            this.encoder.reset();
+        }
+
+        @Override
+        void write(final byte[] bytes) throws IOException {
+            this.finishLeftover();
+            if (bytes.length <= this.buffer.remaining()) {
+                this.buffer.put(bytes);
+                return;
+            }
+            // 溜まっている分と一緒にギャザリング書き込みする
+            this.buffer.flip();
+            ByteBuffer tail = ByteBuffer.wrap(bytes);
+            if (this.channel instanceof GatheringByteChannel) {
+                GatheringByteChannel gathering = (GatheringByteChannel) this.channel;
+                ByteBuffer[] srcs = {this.buffer, tail};
+                while (tail.hasRemaining()) {
+                    gathering.write(srcs);
+                }
+            } else {
+                while (this.buffer.hasRemaining()) {
+                    this.channel.write(this.buffer);
+                }
+                while (tail.hasRemaining()) {
+                    this.channel.write(tail);
+                }
+            }
+            this.buffer.clear();
+        }
+
+        @Override
+        public void write(final String str) throws IOException {
+            // null は文字列連結と同じく "null" と書き出す(見出しの文字列がない場合など)
+            this.encode(CharBuffer.wrap(String.valueOf(str)));
+        }
+
+        @Override
+        public void write(final String str, final int off, final int len) throws IOException {
+            this.encode(CharBuffer.wrap(str, off, off + len));
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) throws IOException {
+            this.encode(CharBuffer.wrap(cbuf, off, len));
+        }
+
+        /**
+         * 文字列をバッファへ直接エンコードする.
+         * 末尾の上位サロゲートは次の書き出しまで持ち越す.
+         * @param chars 文字列
+         * @throws IOException 書き出し時の例外
+         */
+        private void encode(final CharBuffer chars) throws IOException {
+            CharBuffer in = chars;
+            if (this.leftover != 0 && in.hasRemaining()) {
+                CharBuffer joined = CharBuffer.allocate(in.remaining() + 1);
+                joined.put(this.leftover).put(in).flip();
+                in = joined;
+                this.leftover = 0;
+            }
+            while (true) {
+                CoderResult result = this.encoder.encode(in, this.buffer, false);
+                if (result.isOverflow()) {
+                    this.drain();
+                } else {
+                    break;
+                }
+            }
+            if (in.hasRemaining()) {
+                this.leftover = in.get();
+            }
+        }
+
+        /**
+         * 持ち越した上位サロゲートを書き出す(不正な文字として置き換えられる).
+         * @throws IOException 書き出し時の例外
+         */
+        private void finishLeftover() throws IOException {
+            CharBuffer in = CharBuffer.allocate(0);
+            if (this.leftover != 0) {
+                in = CharBuffer.wrap(new char[] {this.leftover});
+                this.leftover = 0;
+            }
+            while (this.encoder.encode(in, this.buffer, true).isOverflow()) {
+                this.drain();
+            }
+            while (this.encoder.flush(this.buffer).isOverflow()) {
+                this.drain();
+            }
+            this.encoder.reset();
+        }
+
+        /**
+         * 溜まっている分をファイルへ書き出す.
+         * @throws IOException 書き出し時の例外
+         */
+        private void drain() throws IOException {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.finishLeftover();
+            this.drain();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.buffer == null) {
+                return;
+            }
+            try {
+                this.flush();
+            } finally {
+                this.channel.close();
+                BUFFERS.get()[0] = this.buffer;
+                this.buffer = null;
+            }
+        }
+    }
+
+    /**
+     * 行の中に指定された記号をタグに変換する.
+     * (本文判定用のチェックモード指定版)
+     * @param line 対象の行
+     * @return 編集後の文字列
+     */
+    private String editLine(final String line) {
+        return this.editLine(line, true);
+    }
+
+    /**
+     * 行中装飾の区切り文字(2 文字続けて使用する).
+     * 並び順は従来の変換順序であり、入れ子の解決順序でもある.
+     */
+    private static final char[] INLINE_DELIMS = {'`', '#', '@', '&', '%', '_'};
+
+    /**
+     * 行中装飾の開始タグ(INLINE_DELIMS と同じ並び).
+     */
+    private static final String[] INLINE_START_TAGS = {
+        "<code style=\"color: #B92A2C; border: solid 1px #c0c0c0; border-radius: 3px 3px 3px 3px; background-color: #dcdcdc; padding: 2px;\">",
+        "<span class=\"marker_yellow_hoso\">",
+        "<span class=\"important_sentence\">",
+        "<span class=\"bold_sentence\">",
+        "<span class=\"text_strike\">",
+        "<span class=\"strong_impact\">"};
+
+    /**
+     * 行中装飾の終了タグ(INLINE_DELIMS と同じ並び).
+     */
+    private static final String[] INLINE_END_TAGS = {
+        "</code>", "</span>", "</span>", "</span>", "</span>", "</span>"};
+
+    /**
+     * 行中変換の出力先(行ごとに使いまわす).
+     */
+    private StringBuilder inlineOut = new StringBuilder();
+
+    /**
+     * 行中装飾ごとの開始タグ出力済みフラグ.
+     */
+    private boolean[] inlineOpen = new boolean[INLINE_DELIMS.length];
+
+    /**
+     * 行末の処理で区切り文字を出力するかどうかの作業領域.
+     */
+    private boolean[] inlineKeep = new boolean[INLINE_DELIMS.length];
+
+    /**
+     * 出力するかどうか未確定の区切り文字(装飾の種別)の並び.
+     * 行末までに本文が続かない区切り文字は従来通り捨てるため、
+     * 後続の文字が来るまで保留しておく.
+     */
+    private int[] inlinePending = new int[16];
+
+    /**
+     * 保留中の区切り文字の数.
+     */
+    private int inlinePendingCnt = 0;
+
+    /**
+     * 行中の脚注を変換するかどうか.
+     */
+    private boolean footNoteEnabled = false;
+
+    /**
+     * 脚注変換のモード(false はチェック用の編集).
+     */
+    private boolean footNoteMode = true;
+
+    /**
+     * 行中で $ に区切られた空でない区間の数.
+     * 偶数番目は本文、奇数番目は脚注.
+     */
+    private int footNoteRunCnt = 0;
+
+    /**
+     * 現在の $ 区間がまだ空かどうか.
+     */
+    private boolean footNoteRunEmpty = true;
+
+    /**
+     * 変換中の脚注の文字列.
+     */
+    private StringBuilder footNoteBuf = new StringBuilder();
+
+    /**
+     * 行中リンクの中かどうか.
+     */
+    private boolean inLink = false;
+
+    /**
+     * 変換中の行中リンクの文字列.
+     */
+    private StringBuilder linkBuf = new StringBuilder();
+
+    /**
+     * 行の中に指定された記号をタグに変換する.
+     * 行を先頭から 1 回だけ走査し、行中装飾・脚注・リンクを同時に変換する.
+     * 変換の結果は従来の「装飾 → 脚注 → リンク」の順の変換と同じになる.
+     *
+     * @param line 対象の行
+     * @param mode チェックモード
+     * @return 編集後の文字列
+     */
+    private String editLine(final String line,
+                            final boolean mode) {
+        this.inlineOut.setLength(0);
+        Arrays.fill(this.inlineOpen, false);
+        this.inlinePendingCnt = 0;
+
+        // 先頭が空白で箇条書きでない行(コードブロックなど)は脚注の対象外
+        this.footNoteEnabled = line.indexOf('$') != -1
+                && !(line.length() > 0 && line.charAt(0) == ' ' && line.indexOf('*') == -1);
+        this.footNoteMode = mode;
+        this.footNoteRunCnt = 0;
+        this.footNoteRunEmpty = true;
+        this.footNoteBuf.setLength(0);
+
+        this.inLink = false;
+        this.linkBuf.setLength(0);
+
+        boolean changed = false;
+        int length = line.length();
+        int literal = 0;
+        int i = 0;
+        while (i < length) {
+            char c = line.charAt(i);
+            if (c == '$' || c == '!') {
+                this.inlineText(line, literal, i);
+                this.inlineFlush(this.inlinePendingCnt);
+                if (c == '$') {
+                    this.footNoteDollar();
+                } else {
+                    this.footNoteBang();
+                }
+                changed = true;
+                i++;
+                literal = i;
+                continue;
+            }
+            int type = this.inlineType(c);
+            if (type != -1 && i + 1 < length && line.charAt(i + 1) == c) {
+                this.inlineText(line, literal, i);
+                this.inlineDelim(type);
+                changed = true;
+                i += 2;
+                literal = i;
+                continue;
+            }
+            i++;
+        }
+        if (!changed) {
+            // 変換対象の記号がなければそのまま返す
+            return line;
+        }
+        this.inlineText(line, literal, length);
+        this.inlineEnd();
+        this.footNoteEnd();
+        this.linkEnd();
+        return this.inlineOut.toString();
+    }
+
+    /**
+     * 行中装飾の区切り文字の種別を取得する.
+     * @param c 文字
+     * @return 種別(INLINE_DELIMS の添字). 区切り文字でなければ -1.
+     */
+    private int inlineType(final char c) {
+        for (int i = 0; i < INLINE_DELIMS.length; i++) {
+            if (INLINE_DELIMS[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 行中装飾の段階: 本文の文字列を受け取る.
+     * @param line 行
+     * @param start 開始位置
+     * @param end 終了位置
+     */
+    private void inlineText(final String line, final int start, final int end) {
+        if (start == end) {
+            return;
+        }
+        // 本文が続くので保留中の区切り文字はすべて確定する
+        this.inlineFlush(this.inlinePendingCnt);
+        this.footNoteText(line, start, end);
+    }
+
+    /**
+     * 行中装飾の段階: 区切り文字を受け取る.
+     * @param type 装飾の種別
+     */
+    private void inlineDelim(final int type) {
+        // 自分より前に変換される種別の区切り文字にとって、
+        // この区切り文字は本文なので、そこまでの保留を確定する
+        int last = -1;
+        for (int i = 0; i < this.inlinePendingCnt; i++) {
+            if (this.inlinePending[i] < type) {
+                last = i;
+            }
+        }
+        this.inlineFlush(last + 1);
+
+        if (this.inlinePendingCnt == this.inlinePending.length) {
+            this.inlinePending = Arrays.copyOf(this.inlinePending, this.inlinePendingCnt * 2);
+        }
+        this.inlinePending[this.inlinePendingCnt] = type;
+        this.inlinePendingCnt++;
+    }
+
+    /**
+     * 保留中の区切り文字を先頭から指定数だけタグとして確定する.
+     * @param count 確定する数
+     */
+    private void inlineFlush(final int count) {
+        for (int i = 0; i < count; i++) {
+            this.inlineToggle(this.inlinePending[i]);
+        }
+        this.inlinePendingCnt -= count;
+        System.arraycopy(this.inlinePending, count, this.inlinePending, 0, this.inlinePendingCnt);
+    }
+
+    /**
+     * 開始タグ・終了タグを交互に出力する.
+     * @param type 装飾の種別
+     */
+    private void inlineToggle(final int type) {
+        if (this.inlineOpen[type]) {
+            this.footNoteText(INLINE_END_TAGS[type], 0, INLINE_END_TAGS[type].length());
+        } else {
+            this.footNoteText(INLINE_START_TAGS[type], 0, INLINE_START_TAGS[type].length());
+        }
+        this.inlineOpen[type] = !this.inlineOpen[type];
+    }
+
+    /**
+     * 行中装飾の段階: 行末の処理.
+     * 行末に残った区切り文字は、先に変換される装飾が閉じられていない
+     * 場合(その終了タグが後ろに付く)だけ出力し、それ以外は捨てる.
+     * 最後に閉じられていない装飾の終了タグを付与する.
+     */
+    private void inlineEnd() {
+        boolean[] keep = this.inlineKeep;
+        boolean lowerOpen = false;
+        for (int type = 0; type < INLINE_DELIMS.length; type++) {
+            keep[type] = lowerOpen;
+            boolean open = this.inlineOpen[type];
+            if (lowerOpen) {
+                for (int i = 0; i < this.inlinePendingCnt; i++) {
+                    if (this.inlinePending[i] == type) {
+                        open = !open;
+                    }
+                }
+            }
+            lowerOpen |= open;
+        }
+        for (int i = 0; i < this.inlinePendingCnt; i++) {
+            if (keep[this.inlinePending[i]]) {
+                this.inlineToggle(this.inlinePending[i]);
+            }
+        }
+        this.inlinePendingCnt = 0;
+        for (int type = 0; type < INLINE_DELIMS.length; type++) {
+            if (this.inlineOpen[type]) {
+                this.inlineToggle(type);
+            }
+        }
+    }
+
+    /**
+     * 脚注の段階: 文字列を受け取る.
+     * @param text 文字列
+     * @param start 開始位置
+     * @param end 終了位置
+     */
+    private void footNoteText(final CharSequence text, final int start, final int end) {
+        if (!this.footNoteEnabled) {
+            this.linkText(text, start, end);
+            return;
+        }
+        this.footNoteRunEmpty = false;
+        if (this.footNoteRunCnt % 2 == 0) {
+            // 本文
+            this.linkText(text, start, end);
+        } else {
+            // 脚注
+            this.footNoteBuf.append(text, start, end);
+        }
     }
 
     /**
-     * 指定した本文文字列がどの見出し配下にあるか判定.
-     * @param line 1行データ
-     * @param orgLine オリジナルの1行データ
-     * @return 見出しレベル. 0 なら見出しではない.
+     * 脚注の段階: $ を受け取る.
      */
-    private int checkHeadingLevel(final String line,
-                                  final String orgLine) {
-        for (int i = 0; i < this.backupList.size(); i++) {
-            String backup = this.backupList.get(i);
-            // 本文中に脚注などの指定があると、backup は変換前、
-            // line は変換後の文字列になっていて一致しなくなる.
-            // そのため orgLine を使用する
-            //String checkBackup = this.editLine(backup, false);
-            //if (checkBackup.equals(line)) {
-               if (backup.equals(orgLine)) {
-                // 前行に遡って見出し行が出てくるのを探す
-                for (int j = i; j >= 0; j--) {
-                    String preBackup = this.backupList.get(j);
-                    if (preBackup != null && !preBackup.equals("")) {
-                        String prefix = preBackup.substring(0, 1);
-                        if (prefix.equals("~")) {
-                            return 3;
-                        } else if (prefix.equals("-")) {
-                            return 2;
-                        } else if (prefix.equals("=")) {
-                            return 1;
-                        } else {
-                            continue;
-                        }
-                    }
-                }
-            }
+    private void footNoteDollar() {
+        if (!this.footNoteEnabled) {
+            this.linkText("$", 0, 1);
+            return;
         }
-        return 0;
+        this.footNoteRunEnd();
     }
 
     /**
-     * 指定した文字が見出し行かどうか判別する.
-     * @param line 対象文字
-     * @return 見出し行なら true を返す
+     * 脚注の段階: ! を受け取る.
      */
-    private boolean isHeading(final String line) {
-        for (int i = 0; i < this.backupList.size(); i++) {
-            String backup = this.backupList.get(i);
-            if (backup.equals(line)) {
-                // 一致した文字列が最終行かどうか
-                if (this.backupList.size() == (i + 1)) {
-                    // 最終行であれば見出しではなく本文
-                    return false;
-                } else {
-                    // 最終行でなければ次行を参照する
-                    String nextBackup = this.backupList.get(i + 1);
-                    // 次行の先頭文字を取得
-                    if (nextBackup != null && !nextBackup.equals("")) {
-                        String prefix = nextBackup.substring(0, 1);
-                        if (prefix.equals("=") || prefix.equals("-") || prefix.equals("~")) {
-                            // 見出し行である
-                            return true;
-                        } else {
-                            return false;
-                        }
-                    }
-                }
-            }
+    private void footNoteBang() {
+        if (this.footNoteEnabled && this.footNoteRunCnt % 2 == 1) {
+            // 脚注の中であれば脚注の文字列
+            this.footNoteRunEmpty = false;
+            this.footNoteBuf.append('!');
+        } else {
+            this.footNoteRunEmpty = false;
+            this.linkBang();
         }
-        // 一致するものがないことはないと思うが、
-        // 見出しではないので false
-        return false;
     }
 
     /**
-     * 箇条書きの書き出し.
-     *
-     * @throws IOException
+     * 脚注の段階: 行末の処理.
      */
-    private void itemListWrite() throws IOException {
-
-        this.bw.write("<ul class=\"left_indent\">" + CONST_CRLF);
-        for (int i = 0; i < this.itemList.size(); i++) {
-
-            Object lv1Obj = this.itemList.get(i);
-            if (lv1Obj instanceof String) {
-
-                this.bw.write("  <li>" + String.valueOf(lv1Obj) + "</li>" + CONST_CRLF);
-
-            } else if (lv1Obj instanceof List) {
-
-                this.bw.write("    <ul>" + CONST_CRLF);
-
-                @SuppressWarnings("unchecked")
-                List<Object> lv2List = (List<Object>) lv1Obj;
-                for (int j = 0; j < lv2List.size(); j++) {
-
-                    Object lv2Obj = lv2List.get(j);
-                    if (lv2Obj instanceof String) {
-
-                        this.bw.write("      <li>" + lv2Obj + "</li>" + CONST_CRLF);
-
-                    } else if (lv2Obj instanceof List) {
-
-                        this.bw.write("      <ul>" + CONST_CRLF);
-
-                        @SuppressWarnings("unchecked")
-                        List<String> lv3List = (List<String>) lv2Obj;
-                        for (int k = 0; k < lv3List.size(); k++) {
-
-                            this.bw.write("      <li>" + lv3List.get(k) + "</li>" + CONST_CRLF);
-                        }
-
-                        this.bw.write("      </ul>" + CONST_CRLF);
-                    }
-                }
-
-                this.bw.write("    </ul>" + CONST_CRLF);
-            }
+    private void footNoteEnd() {
+        if (this.footNoteEnabled) {
+            this.footNoteRunEnd();
         }
-
-        this.bw.write("</ul>" + CONST_CRLF);
-        this.itemList = new ArrayList<Object>();
     }
 
     /**
-     * ブロック情報の書き出し.
-     *
-     * @throws IOException
+     * $ で区切られた区間の終わり.
+     * 空の区間は数えない(本文と脚注が交互に並ぶ).
      */
-    private void blockWrite() throws IOException {
-
-        this.blockZoneFlg = false;
-
-        if (this.blockList.size() == 0) {
+    private void footNoteRunEnd() {
+        if (this.footNoteRunEmpty) {
             return;
         }
+        if (this.footNoteRunCnt % 2 == 1) {
+            this.footNoteConvert(this.footNoteBuf.toString());
+            this.footNoteBuf.setLength(0);
+        }
+        this.footNoteRunCnt++;
+        this.footNoteRunEmpty = true;
+    }
 
-        if (this.isCodeBlock) {
-            this.bw.write("<pre class=\"code-box deco\"><code>");
-            for (int i = 0; i < this.blockList.size(); i++) {
-                String line = this.editSyntaxHighlight4J(this.blockList.get(i));
-                if (i == 0 || (i == this.blockList.size() - 1)) {
-                    if (line.length() != 0) {
-                        this.bw.write(line + CONST_CRLF);
-                    }
-                } else {
-                    this.bw.write(line + CONST_CRLF);
+    /**
+     * 脚注の文字列を脚注リストへ保存し、本文側に参照番号を入れる.
+     * @param note 脚注の文字列
+     */
+    private void footNoteConvert(final String note) {
+        String tmp = note;
+        StringBuilder headingWord = new StringBuilder();
+        if (tmp.charAt(0) == '{') {
+            // 見出し語が定義されているので，閉じかっこまで検索する
+            for (int j = 0; j < tmp.length(); j++) {
+                char token = tmp.charAt(j);
+                if (token == '}') {
+                    tmp = tmp.substring(j + 1);
+                    break;
+                } else if (token != '{') {
+                    headingWord.append(token);
                 }
             }
-            this.bw.write("</code></pre>" + CONST_CRLF);
-        } else {
-            String cite = "";
-            this.bw.write("<blockquote><p><br>" + CONST_CRLF);
-            for (int i = 0; i < this.blockList.size(); i++) {
-                String line = this.blockList.get(i);
-                if (line.indexOf("cite:") != -1) {
-                    cite = line.substring(5);
-                } else {
-                    if (i == 0 || (i == this.blockList.size() - 1)) {
-                        if (line.length() != 0) {
-                            this.bw.write(line + "<br>");
-                        }
-                    } else {
-                        this.bw.write(line + "<br>");
-                    }
-                }
+        }
+
+        // 脚注書き出し処理
+        if (this.footNoteMode) {
+            // 脚注の文章をリストへ保存する
+            if (headingWord.length() == 0) {
+                this.footNoteList.add("<span id=\"" + (this.footNoteCount + 1)
+                        + "\"><a href=\"#o" + (this.footNoteCount + 1)
+                        + "\">[" + (this.footNoteCount + 1) + "]</a></span>: " + tmp);
+            } else {
+                this.footNoteList.add("<span id=\"" + (this.footNoteCount + 1)
+                        + "\"><a href=\"#o" + (this.footNoteCount + 1)
+                        + "\">[" + (this.footNoteCount + 1) + "]</a></span>: <b><u>" + headingWord + "</u></b>: " + tmp);
             }
-            this.bw.write("<cite>" + cite + "</cite>");
-            this.bw.write("</p></blockquote>");
         }
-        // 初期化
-        this.blockList = new ArrayList<String>();
+
+        // 脚注リンクの上にマウスカーソルを置いた時のツールチップ表示用の脚注文章
+        // とりあえずダブルクオーテーションとかを除去する
+        String tooltip = tmp.replace("\"", "");
+
+        String ref;
+        if (this.footNoteMode) {
+            // 本文側に参照番号を入れる
+            ref = " <span class=\"supText\" id=\"o" + (this.footNoteCount + 1) + "\"><a href=\"#"
+                    + (this.footNoteCount + 1) + "\" title=\"" + tooltip + "\">*" + (this.footNoteCount + 1) + "</a></span> ";
+            this.footNoteCount++;
+        } else {
+            // チェック用の編集
+            ref = " <span class=\"supText\" id=\"o" + (this.footNoteCount) + "\"><a href=\"#"
+                    + (this.footNoteCount) + "\" title=\"" + tooltip + "\">*" + (this.footNoteCount) + "</a></span> ";
+        }
+
+        // ツールチップの中の ! もリンクの区切りとして扱う(従来通り)
+        int start = 0;
+        int bang = ref.indexOf('!');
+        while (bang != -1) {
+            this.linkText(ref, start, bang);
+            this.linkBang();
+            start = bang + 1;
+            bang = ref.indexOf('!', start);
+        }
+        this.linkText(ref, start, ref.length());
     }
 
     /**
-     * コードブロックに表示する Java 言語のシンタックスハイライト処理.
-     * @param line 対象
-     * @return 変換後
+     * リンクの段階: 文字列を受け取る.
+     * @param text 文字列
+     * @param start 開始位置
+     * @param end 終了位置
      */
-    private String editSyntaxHighlight4J(final String line) {
-        String ret = line;
-        for (int i = 0; i < this.syntaxHighlighting4J.length; i++) {
-            ret = ret.replace(syntaxHighlighting4J[i], "<span style=\"color: #B92A2C;\">"
-                            + syntaxHighlighting4J[i] + "</span>");
+    private void linkText(final CharSequence text, final int start, final int end) {
+        if (this.inLink) {
+            this.linkBuf.append(text, start, end);
+        } else {
+            this.inlineOut.append(text, start, end);
         }
-        return ret;
     }
 
     /**
-     * 初期の書き出し.
-     *
-     * @throws IOException
-     */
-    private void initWrite() throws IOException {
-
-        this.bw.write("<!DOCTYPE html>" + CONST_CRLF);
-        this.bw.write("<html lang=\"ja\">" + CONST_CRLF);
-        this.bw.write("<head>" + CONST_CRLF);
-        this.bw.write("  <meta charset=\"UTF-8\"/>" + CONST_CRLF);
-        this.bw.write("  <title>" + this.title + "</title>" + CONST_CRLF);
-        this.bw.write("<link rel=\"stylesheet\" type=\"text/css\" href=\"https://fonts.googleapis.com/css?family=Lato\" />");
-        this.bw.write("  <style type=\"text/css\">" + CONST_CRLF);
-        this.bw.write("      body {margin-right: auto; margin-left: auto; width: 800px; " +
-                "background-color: #fedadf; font-family: Lato, 'メイリオ', 'Meiryo',"+
-                "'ヒラギノ丸ゴ Pro W4','ヒラギノ丸ゴ Pro','Hiragino Maru Gothic Pro', 'ヒラギノ角ゴ Pro W3', 'Hiragino Kaku Gothic Pro', sans-self " +
-                "!important; font-size: 1.0em; -webkit-font-smoothing: antialiased;}" + CONST_CRLF);
-        this.bw.write("      h1 {position: relative; margin: 0 0 1.5em; padding: 0.8em; " +
-                "background: #B92A2C; color: #fff; font-size: 1.143em; font-weight: bold; " +
-                "border-radius: 5px; -webkit-border-radius: 5px; -moz-border-radius: 5px;}" + CONST_CRLF);
-        this.bw.write("      h1:after {position: absolute; bottom: -15px; left: 10%; z-index: 90; " +
-                "margin-left: -15px; border-top: 15px solid #B92A2C; border-left: 15px solid transparent; " +
-                "border-bottom: 0; content: \"\";}" + CONST_CRLF);
-        this.bw.write("      h2 {position: relative; margin: 10 10 1.5em; padding: 0.8em 0 0.8em 1.5em; " +
-                "border: 1px solid #B92A2C; font-size: 1.143em; font-weight: bold; background: #ffb7b8;" +
-                "border-radius: 5px; -webkit-border-radius: 5px; -moz-border-radius: 5px;}" + CONST_CRLF);
-        this.bw.write("      h2:before {content: \"\"; position: absolute; background: #B92A2C; " +
-                "top: 50%; left: 0.5em; margin-top: -15px; height: 30px; width: 8px; " +
-                "border-radius: 2px; -webkit-border-radius: 2px; -moz-border-radius: 2px;}" + CONST_CRLF);
-        this.bw.write("      h3 {margin: 0 0 1.0em; padding: 0.4em; border-left: 7px solid #B92A2C; " +
-                "border-bottom: 1px dashed #B92A2C; font-size: 1.0em; font-weight: bold; margin-left: 25px;}");
-        this.bw.write("      code {font-family: Menlo, Consolas, 'DejaVu Sans Mono', monospace; " +
-                "font-size: 14px; line-height: 1.4;}");
-        this.bw.write("      .code-box {margin-left: 35px; background-color: #eee; padding: 0.8em; " +
-                "border:1px solid #A8A8A8;border-radius: 6px; -webkit-border-radius: 6px; -moz-border-radius: 6px; overflow: auto;}");
-
-
-        this.bw.write("      .inner-link-box {margin-left: 35px; background-color: #eee; padding: 0.8em; border:1px solid #A8A8A8;}");
-        this.bw.write("      .inner-link-outline {margin-left: 85px; font-size: 0.7em;}");
-
-
-        this.bw.write("      hr {margin-left: 35px; border: none; border-top: dashed 1px #A8A8A8; height: 1px; " +
-                "color: #FFFFFF; margin: 0 6 0 6;}" + CONST_CRLF);
-        this.bw.write("      .footnote {font-size: 0.8em;}" + CONST_CRLF);
-        this.bw.write("      .supText {font-size: 0.6em; vertical-align: super; " +
-                "position: relative; top: -0.1em; color: #B92A2C}" + CONST_CRLF);
-        this.bw.write("      .footer {width: auto; height: 25px; line-height: 25px; " +
-                "background-color: #B92A2C; color: #fff; font-size: 0.9em; text-align: right;}" + CONST_CRLF);
-        this.bw.write("      table.type01 {margin-left: 35px; border-collapse: separate;" +
-                " border-spacing: 1px; text-align: center; line-height: 1.5;}" + CONST_CRLF);
-        this.bw.write("      table.type01 th {padding: 10px; font-weight: normal; vertical-align: top;" +
-                " color: #fff; background: #B92A2C;}" + CONST_CRLF);
-        this.bw.write("      table.type01 td {padding: 10px; font-weight: normal; vertical-align: top;" +
-                " border-bottom: 1px solid #ccc; background: #eee;}" + CONST_CRLF);
-        //this.bw.write("      img {margin-left: 35px; max-width: 95%; border: 1px #B92A2C solid;}" + CONST_CRLF);
-        this.bw.write("      img {max-width: 95%; border: 1px #B92A2C solid;}" + CONST_CRLF);
-        this.bw.write("      .footnote_title {margin-left: 35px; font-weight: bold;}" + CONST_CRLF);
-        this.bw.write("      .heading_lv1 {margin-left: 15px;}" + CONST_CRLF);
-        this.bw.write("      .heading_lv2 {margin-left: 15px;}" + CONST_CRLF);
-        this.bw.write("      .heading_lv3 {margin-left: 25px;}" + CONST_CRLF);
-        this.bw.write("     p {text-indent: 1em;}" + CONST_CRLF);
-        this.bw.write("     a {text-decoration: none;}" + CONST_CRLF);
-        this.bw.write("      .left_indent {margin-left: 20px;}" + CONST_CRLF);
-        this.bw.write("      .toc {font-size: 0.8em;}" + CONST_CRLF);
-        this.bw.write("      .page_top {font-size: 0.8em; text-align: right; }" + CONST_CRLF);
-        this.bw.write("      .box27 {margin-left: 35px; position: relative; background-color: #eee; padding: 0.8em; border: solid 2px #B92A2C;}" + CONST_CRLF);
-        this.bw.write("      .box27 .box-title {position: absolute; display: inline-block; top: -27px;"
-                           + " left: -2px; padding: 0 9px; height: 25px; line-height: 25px; vertical-align: middle;"
-                           + " font-size: 12px; background: #B92A2C; color: #ffffff; font-weight: normal;"
-                           + " border-radius: 5px 5px 0 0;}" + CONST_CRLF);
-        this.bw.write("      .box27 p { margin: 0; padding: 0;}" + CONST_CRLF);
-        this.bw.write("      .sankou-badge, .link-badge { padding: 1px 6px; margin-right: 8px; margin-left: 1px; font-size: 70%; color: white; "
-                           + "border-radius: 2px; box-shadow: 0 0 3px #ddd; white-space: nowrap; }" + CONST_CRLF);
-
-        this.bw.write("      .link-badge { background-color: #58ACFA; }");
-        this.bw.write("      .sankou-badge { background-color: #B92A2C; }");
-        this.bw.write("      .code-box.deco::-webkit-scrollbar { height: 10px; }" + CONST_CRLF);
-        this.bw.write("      .code-box.deco::-webkit-scrollbar-track { border-radius: 50px; background: #eee; }" + CONST_CRLF);
-        this.bw.write("      .code-box.deco::-webkit-scrollbar-thumb { border-radius: 10px; background: #A8A8A8; }" + CONST_CRLF);
-        this.bw.write("      .marker_yellow_hoso { background: linear-gradient(transparent 60%, #ffff66 60%); font-weight: bold;}" + CONST_CRLF);
-        this.bw.write("      .important_sentence { color: red; text-decoration: underline; font-weight: bold;}" + CONST_CRLF);
-        this.bw.write("      .bold_sentence { text-decoration: underline; font-weight: bold;}" + CONST_CRLF);
-        this.bw.write("      .text_strike {text-decoration: line-through;}" + CONST_CRLF);
-        this.bw.write("      .strong_impact { background: linear-gradient(transparent 80%, #ffff66 80%); font-weight: bold; font-size: 2.5em}" + CONST_CRLF);
-
-        this.bw.write("       blockquote { margin-left: 35px; position: relative; padding: 5px 10px 5px 32px; width: 721px; "
-                           + "font-style: italic; background: #ffcce5; border-bottom: solid 3px #B92A2C; border-top: solid 1px #B92A2C; }" + CONST_CRLF);
-        this.bw.write("       blockquote:before{ display: inline-block; position: absolute; top: 10px; left: -15px; "
-                           + "width: 100px; height: 30px; vertical-align: middle; text-align: center; content: \"Quote\"; "
-                           + "font-family: FontAwesome; color: #FFF; font-size: 18px; line-height: 30px; background: #B92A2C; font-weight: 900; }" + CONST_CRLF);
-        this.bw.write("       blockquote:after{ position: absolute; content: ''; top: 40px; left: -15px; border: none; "
-                           + "border-bottom: solid 8px transparent; border-right: solid 15px #daaa64; }" + CONST_CRLF);
-        this.bw.write("       blockquote p { position: relative; padding: 0; margin: 10px 0; z-index: 3; line-height: 1.7; }" + CONST_CRLF);
-        this.bw.write("       blockquote cite { display: block; text-align: right; color: #888888; font-size: 0.9em; }" + CONST_CRLF);
-        this.bw.write("      .help {font-size: 0.4em; text-align: right}" + CONST_CRLF);
-
-        this.bw.write("  </style>" + CONST_CRLF);
-        this.bw.write("</head>" + CONST_CRLF);
-        this.bw.write("<body>" + CONST_CRLF);
-    }
-
-    /**
-     * 最後の書き出し.
-     *
-     * @throws IOException
+     * リンクの段階: ! を受け取る.
+     * 記法は簡略化のため !リンク名,URL! とする.
      */
-    private void finalWrite() throws IOException {
-
-        // 生成処理時刻を求める
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String formattedLdt = sdf.format(new Date());
-
-        this.bw.write("<br>" + CONST_CRLF);
-        this.bw.write("<div class=\"page_top\"><a href=\"#\">^page top</a></div>" + CONST_CRLF);
-        this.bw.write("<div class=\"footer\">Last Generated:" + formattedLdt + "／Generated by Maki "
-                + CONST_VERSION + "&nbsp;</div>" + CONST_CRLF);
-        this.bw.write("<div class=\"help\"><code>[``]: code</code>&nbsp;&nbsp;&nbsp;"
-                + "<code>[##]: ym + u</code>&nbsp;&nbsp;&nbsp;"
-                + "<code>[@@]: r + b + u</code>&nbsp;&nbsp;&nbsp;<code>"
-                + "[&&]: b + u</code>&nbsp;&nbsp;&nbsp;<code>"
-                + "[%%]: strike</code>&nbsp;&nbsp;&nbsp;<code>"
-                + "[__]: strong big</code></div>");
-        this.bw.write("</body>" + CONST_CRLF);
-        this.bw.write("</html>" + CONST_CRLF);
+    private void linkBang() {
+        if (this.inLink) {
+            this.linkConvert();
+        } else {
+            this.inLink = true;
+            this.linkBuf.setLength(0);
+        }
     }
 
     /**
-     * 行の中に指定された記号をタグに変換する.
-     * (本文判定用のチェックモード指定版)
-     * @param line 対象の行
-     * @return 編集後の文字列
+     * リンクの段階: 行末の処理.
      */
-    private String editLine(final String line) {
-        return this.editLine(line, true);
+    private void linkEnd() {
+        if (this.inLink) {
+            this.linkConvert();
+        }
     }
 
     /**
-     * 【改訂版】インラインの編集(汎用).
-     * @param line 行データ
-     * @param delim 区切り文字
-     * @param startTag 置換する開始タグ
-     * @param endTag 置換する終了タグ
-     * @return 編集後の行データ
+     * ! で囲まれた文字列をリンクに変換する.
+     * 「リンク名,URL」の形式でなければそのまま出力する.
      */
-    private String editInline(final String line,
-                              final String delim,
-                              final String startTag,
-                              final String endTag) {
-
-        String retLine = line;
-        if (line.indexOf(delim) != -1) {
-            String[] tokens = line.split(delim);
-            StringBuilder ret = new StringBuilder();
-            for (int i = 0; i < tokens.length; i++) {
-                if (i % 2 == 0) {
-                    if (i == (tokens.length - 1)) {
-                        ret.append(tokens[i]);
-                    } else {
-                        ret.append(tokens[i] + startTag);
-                    }
-                } else {
-                    ret.append(tokens[i] + endTag);
-                }
-            }
-            retLine = ret.toString();
+    private void linkConvert() {
+        this.inLink = false;
+        StringTokenizer tmp = new StringTokenizer(this.linkBuf.toString(), ",");
+        if (tmp.countTokens() == 2) {
+            String linkName = tmp.nextToken();
+            String url = tmp.nextToken();
+            this.inlineOut.append("<span class=\"sankou-badge\">Link</span><a href=\"").append(url)
+                          .append("\" target=\"_blank\">").append(linkName).append("</a>");
+        } else {
+            this.inlineOut.append(this.linkBuf);
         }
-        return retLine;
+        this.linkBuf.setLength(0);
     }
 
     /**
-     * 行中の脚注の変換.
-     * @param line 1行(各種変換済み)
-     * @param mode モード
-     * @return 変換後1行
+     * 脚注の終わり. 見出しまでの脚注を文書木へ追加する.
      */
-    private String editInlineFootnote(final String line, final boolean mode) {
-        //  行中の脚注の変換
-        if (line.indexOf("$") != -1
-            && !(line.length() > 0 && line.substring(0, 1).equals(" ") && line.indexOf("*") == -1)) {
-            // 行中に脚注が含まれているため，脚注部分の文字列を抜き出し，
-            // 代わりに *1 のような参照番号を付与する.
-            // 複数個所ある可能性もあるので，取り出し方には留意する.
-            // 脚注の入れ子は現時点では対象外とする.
-
-            // Maki で脚注は $ で挟むことにした
-            // StringTokenizer で区切れば本文と脚注が交互に取れる
-            StringTokenizer st = new StringTokenizer(line, "$");
+    private void endFootNotes() {
 
-            int i = 0;
+        // 脚注がひとつもなければ処理終了
+        if (this.footNoteList.size() == 0) {
+            return;
+        }
 
-            // 返却用の文字列
-            StringBuffer ret = new StringBuffer();
-            while (st.hasMoreTokens()) {
+        this.document.add(new FootNoteNode(this.footNoteList));
+        this.footNoteList = new ArrayList<String>();
+    }
 
-                if (i % 2 == 0) {
+    /**
+     * テーブルの終わり. テーブルのデータ部の途中であればテーブルを文書木へ追加する.
+     */
+    private void endTable() {
 
-                    // 本文
-                    ret.append(st.nextToken());
+        if (this.tableStatus != TABLE_BODY) {
+            return;
+        }
+        this.tableStatus = TABLE_NONE;
 
-                } else {
+        // テーブルデータがない場合は処理終了
+        if (this.tableHeader.equals("")
+         && this.tableDataList.size() == 0) {
+            return;
+        }
 
-                    String tmp = st.nextToken();
-                    StringBuffer headingWord = new StringBuffer();
-                    if (tmp.substring(0, 1).equals("{")) {
-                        // 見出し語が定義されているので，閉じかっこまで検索する
-                        for (int j = 0; j < tmp.length(); j++) {
-                            String token = tmp.substring(j, j+1);
-                            if (token.equals("}")) {
-                                tmp = tmp.substring(j+1);
-                                break;
-                            } else {
-                                if (!token.equals("{")) {
-                                    headingWord.append(token);
-                                }
-                            }
-                        }
-                    }
+        List<List<String>> rows = new ArrayList<List<String>>();
+        for (int i = 0; i < this.tableDataList.size(); i++) {
+            rows.add(tableCells(this.tableDataList.get(i)));
+        }
+        this.document.add(new TableNode(tableCells(this.tableHeader), rows));
 
-                    // 脚注書き出し処理
-                    if (mode) {
-                        // 脚注の文章をリストへ保存する
-                        if (headingWord.toString().equals("")) {
-                            this.footNoteList.add("<span id=\"" + (this.footNoteCount + 1)
-                                    + "\"><a href=\"#o"+ (this.footNoteCount + 1)
-                                    + "\">[" + (this.footNoteCount + 1) + "]</a></span>: " + tmp);
+        this.tableHeader = "";
+        this.tableDataList = new ArrayList<String>();
+    }
 
-                        } else {
-                            this.footNoteList.add("<span id=\"" + (this.footNoteCount + 1)
-                                    + "\"><a href=\"#o"+ (this.footNoteCount + 1)
-                                    + "\">[" + (this.footNoteCount + 1) + "]</a></span>: <b><u>" + headingWord + "</u></b>: " + tmp);
-                        }
-                    }
+    /**
+     * テーブルの行を | で区切ってセルに分ける.
+     * @param line テーブルの行
+     * @return 前後の空白を除いたセル
+     */
+    private static List<String> tableCells(final String line) {
+        List<String> cells = new ArrayList<String>();
+        StringTokenizer tokens = new StringTokenizer(line, "|");
+        while (tokens.hasMoreTokens()) {
+            cells.add(tokens.nextToken().trim());
+        }
+        return cells;
+    }
 
-                    // 脚注リンクの上にマウスカーソルを置いた時のツールチップ表示用の脚注文章
-                    // とりあえずダブルクオーテーションとかを除去する
-                    String tooltip = tmp;
-                    tooltip = tooltip.replace("\"", "");
+    /**
+     * 読み込んだ行を解析して文書木を作成する.
+     * @throws IOException リンク先ファイル読み込み時の例外
+     */
+    private void parse() throws IOException {
 
-                    if (mode) {
-                        // 本文側に参照番号を入れる
-                        ret.append(" <span class=\"supText\" id=\"o" + (this.footNoteCount + 1) + "\"><a href=\"#"
-                                + (this.footNoteCount + 1) + "\" title=\"" + tooltip + "\">*" + (this.footNoteCount + 1) + "</a></span> ");
-                        this.footNoteCount++;
-                    } else {
-                        // チェック用の編集
-                        ret.append(" <span class=\"supText\" id=\"o" + (this.footNoteCount) + "\"><a href=\"#"
-                                + (this.footNoteCount) + "\" title=\"" + tooltip + "\">*" + (this.footNoteCount) + "</a></span> ");
-                    }
-                }
+        // 行の種別と見出しレベルの索引作成
+        this.createLineIndex();
 
-                i++;
+        // 本文(目次の見出しも同じ走査で集める)
+        for (int i = 0; i < this.backupList.size(); i++) {
+            int prefix = this.backupList.first(i);
+            if (prefix != -1 && underlineLevel((char) prefix) != 0) {
+                this.document.addToc((char) prefix, this.backupList.get(i - 1));
             }
-
-            // 結果を設定する
-            return ret.toString();
+            String line = this.backupList.get(i);
+            this.parseLine(line, this.isHeading(i), this.checkHeadingLevel(i));
         }
-        return line;
+        this.endDocument();
     }
 
     /**
-     * 行中リンクの変換.
-     * @param line 1行
-     * @return 変換後の1行
+     * ページの上部の目次の書き出し.
+     * 見出しを先頭から順に受け取り、見出しレベルに合わせてリストを入れ子にする.
      */
-    private String editInlineLink(final String line) {
-        log("editInlineLink --- START");
-        // 記法は簡略化のためこのようなものに。
-        if (line.indexOf("!") != -1) {
-            log(line);
-            String[] tokens = line.split("!");
-            log("tokens num:[" + tokens.length + "]");
-            StringBuffer ret = new StringBuffer();
-            int i = 0;
-            for (String token : tokens) {
-                if (i % 2 == 0) {
-                    log("本文");
-                    // 本文
-                    // ! で行を分割した時に偶数番目のトークンを
-                    // 本文として扱う。
-                    ret.append(token);
-                } else {
-                    log("リンク");
-                    // リンクの記述
-                    // 奇数番目のトークンをリンクとして扱う。
-                    String str = token;
-                    StringTokenizer tmp = new StringTokenizer(str, ",");
-                    if (tmp.countTokens() == 2) {
-                        String linkName = tmp.nextToken();
-                        String url = tmp.nextToken();
-                        ret.append("<span class=\"sankou-badge\">Link</span><a href=\"" + url + "\" target=\"_blank\">" + linkName
-                                + "</a>");
-                    } else {
-                        ret.append(str);
-                    }
+    private static final class TocWriter {
+
+        /**
+         * 書き出し先.
+         */
+        private final PageOutput bw;
+
+        /**
+         * 目次ファイルのパス.
+         */
+        private final String tocFilePath;
+
+        /**
+         * 現在の見出しレベル.
+         */
+        private int nowLv = 0;
+
+        /**
+         * 見出し1の数.
+         */
+        private int tmpH1Cnt = 0;
+
+        /**
+         * 見出し2の数.
+         */
+        private int tmpH2Cnt = 0;
+
+        /**
+         * 見出し3の数.
+         */
+        private int tmpH3Cnt = 0;
+
+        /**
+         * コンストラクタ.
+         * @param bw 書き出し先
+         * @param tocFilePath 目次ファイルのパス
+         */
+        TocWriter(final PageOutput bw, final String tocFilePath) {
+            this.bw = bw;
+            this.tocFilePath = tocFilePath;
+        }
+
+        /**
+         * 目次の開始を書き出す.
+         * @throws IOException 書き込み時の例外
+         */
+        void start() throws IOException {
+            this.bw.write("<u>Table of Contents.</u> &nbsp; <span class=\"toc\"><a href=\"" + this.tocFilePath + "\">top</a></span>");
+            this.bw.write("<ul class=\"toc\">" + CONST_CRLF);
+        }
+
+        /**
+         * 見出しを 1 つ書き出す.
+         * @param prefix 見出しの下線の文字(=, -, ~)
+         * @param title 見出しの文字列(下線の前の行)
+         * @throws IOException 書き込み時の例外
+         */
+        void heading(final char prefix, final String title) throws IOException {
+            if (prefix == '=') {
+                if (this.nowLv == 0) {
+                    this.bw.write("  <li><a href=\"#h1_" + this.tmpH1Cnt + "\">" + title + "</a></li>" + CONST_CRLF);
+                    this.tmpH1Cnt++;
+                    this.nowLv = 1;
+                } else if (this.nowLv == 1) {
+                    this.bw.write("  <li><a href=\"#h1_" + this.tmpH1Cnt + "\">" + title + "</a></li>" + CONST_CRLF);
+                    this.tmpH1Cnt++;
+                } else if (this.nowLv == 2) {
+                    this.bw.write("  </ul>" + CONST_CRLF);
+                    this.bw.write("  <li><a href=\"#h1_" + this.tmpH1Cnt + "\">" + title + "</a></li>" + CONST_CRLF);
+                    this.tmpH1Cnt++;
+                    this.nowLv = 1;
+                } else if (this.nowLv == 3) {
+                    this.bw.write("    </ul>" + CONST_CRLF);
+                    this.bw.write("  </ul>" + CONST_CRLF);
+                    this.bw.write("  <li><a href=\"#h1_" + this.tmpH1Cnt + "\">" + title + "</a></li>" + CONST_CRLF);
+                    this.tmpH1Cnt++;
+                    this.nowLv = 1;
                 }
-                i++;
+            } else if (prefix == '-') {
+                if (this.nowLv == 1) {
+                    this.bw.write("  <ul>" + CONST_CRLF);
+                    this.bw.write("    <li><a href=\"#h2_" + this.tmpH2Cnt + "\">" + title + "</a></li>" + CONST_CRLF);
+                    this.tmpH2Cnt++;
+                    this.nowLv = 2;
+                } else if (this.nowLv == 2) {
+                    this.bw.write("    <li><a href=\"#h2_" + this.tmpH2Cnt + "\">" + title + "</a></li>" + CONST_CRLF);
+                    this.tmpH2Cnt++;
+                } else if (this.nowLv == 3) {
+                    this.bw.write("    </ul>" + CONST_CRLF);
+                    this.bw.write("    <li><a href=\"#h2_" + this.tmpH2Cnt + "\">" + title + "</a></li>" + CONST_CRLF);
+                    this.tmpH2Cnt++;
+                    this.nowLv = 2;
+                }
+            } else if (prefix == '~') {
+                if (this.nowLv == 2) {
+                    this.bw.write("    <ul>" + CONST_CRLF);
+                    this.bw.write("      <li><a href=\"#h3_" + this.tmpH3Cnt + "\">" + title + "</a></li>" + CONST_CRLF);
+                    this.tmpH3Cnt++;
+                    this.nowLv = 3;
+                } else if (this.nowLv == 3) {
+                    this.bw.write("      <li><a href=\"#h3_" + this.tmpH3Cnt + "\">" + title + "</a></li>" + CONST_CRLF);
+                    this.tmpH3Cnt++;
+                }
+            }
+        }
+
+        /**
+         * 目次の終了を書き出す.
+         * @throws IOException 書き込み時の例外
+         */
+        void end() throws IOException {
+            if (this.nowLv == 2) {
+                this.bw.write("  </ul>" + CONST_CRLF);
+            } else if (this.nowLv == 3) {
+                this.bw.write("    </ul>" + CONST_CRLF);
+                this.bw.write("  </ul>" + CONST_CRLF);
             }
-            log("editInlineLink --- END1");
-            return ret.toString();
+            this.bw.write("</ul>" + CONST_CRLF);
         }
-        log("editInlineLink --- END2");
-        return line;
     }
 
     /**
-     * 行の中に指定された記号をタグに変換する.
-     *
-     * @param line 対象の行
-     * @param mode チェックモード
-     * @return 編集後の文字列
-     */
-    private String editLine(final String line,
-                            final boolean mode) {
-        String work = line;
-        work = this.editInline(work, "``", "<code style=\"color: #B92A2C; border: solid 1px #c0c0c0; border-radius: 3px 3px 3px 3px; background-color: #dcdcdc; padding: 2px;\">", "</code>");
-        work = this.editInline(work, "##", "<span class=\"marker_yellow_hoso\">", "</span>");
-        work = this.editInline(work, "@@", "<span class=\"important_sentence\">", "</span>");
-        work = this.editInline(work, "&&", "<span class=\"bold_sentence\">", "</span>");
-        work = this.editInline(work, "%%", "<span class=\"text_strike\">", "</span>");
-        work = this.editInline(work, "__", "<span class=\"strong_impact\">", "</span>");
-        // 行中の脚注の編集
-        work = this.editInlineFootnote(work, mode);
-        // リンクの作成
-        work = this.editInlineLink(work);
-        return work;
-    }
-
-    /**
-     * 脚注を書き出す.
-     *
-     * @throws IOException
+     * 本文のセグメントバッファ.
+     * 1 行ずつ変換する場合に、目次より後ろに書き出す本文を目次ができるまで溜めておく.
+     * {@link #MEMORY_LIMIT} まではメモリ上に溜め、それ以降は一時ファイルへ書き出す.
      */
-    private void footNoteWrite() throws IOException {
-
-        // 脚注がひとつもなければ処理終了
-        if (this.footNoteList.size() == 0) {
-            return;
+    private static final class SegmentBuffer implements WritableByteChannel {
+
+        /**
+         * メモリ上に溜める大きさの上限(バイト).
+         */
+        private static final int MEMORY_LIMIT = 8 * 1024 * 1024;
+
+        /**
+         * 読み出し時のバッファの大きさ(バイト).
+         */
+        private static final int COPY_SIZE = 64 * 1024;
+
+        /**
+         * メモリ上に溜めた本文.
+         */
+        private final ByteArrayOutputStream memory = new ByteArrayOutputStream(COPY_SIZE);
+
+        /**
+         * 上限を超えた本文の一時ファイル. 超えていなければ null.
+         */
+        private FileChannel spill = null;
+
+        /**
+         * 書き込めるかどうか.
+         */
+        private boolean open = true;
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            int length = src.remaining();
+            if (this.spill == null && this.memory.size() + length > MEMORY_LIMIT) {
+                // 一時ファイルは閉じたときに削除する
+                File file = File.createTempFile("maki", ".seg");
+                this.spill = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            if (this.spill != null) {
+                while (src.hasRemaining()) {
+                    this.spill.write(src);
+                }
+            } else if (src.hasArray()) {
+                this.memory.write(src.array(), src.arrayOffset() + src.position(), length);
+                src.position(src.limit());
+            } else {
+                byte[] bytes = new byte[length];
+                src.get(bytes);
+                this.memory.write(bytes, 0, length);
+            }
+            return length;
         }
 
-        // 脚注用に少しスペースを空ける
-        //this.bw.write("<br><br><br>");
-        this.bw.write("<hr>" + CONST_CRLF);
-        this.bw.write("<div class=\"footnote_title\">脚注</div>" + CONST_CRLF);
-        this.bw.write("<ul style=\"list-style:none\">" + CONST_CRLF);
+        @Override
+        public boolean isOpen() {
+            return this.open;
+        }
 
-        for (int i = 0; i < this.footNoteList.size(); i++) {
-            String footNote = this.footNoteList.get(i);
+        /**
+         * 書き込みを終える. 溜めた本文は {@link #discard()} まで保持する.
+         */
+        @Override
+        public void close() {
+            this.open = false;
+        }
 
-            this.bw.write("<li><span class=\"footnote\">" + footNote + "</span></li>" + CONST_CRLF);
+        /**
+         * 溜めた本文を書き出す.
+         * @param out 書き出し先
+         * @throws IOException 読み込み・書き込み時の例外
+         */
+        void writeTo(final PageOutput out) throws IOException {
+            if (this.memory.size() > 0) {
+                out.write(this.memory.toByteArray());
+            }
+            if (this.spill == null) {
+                return;
+            }
+            this.spill.position(0);
+            ByteBuffer buf = ByteBuffer.allocate(COPY_SIZE);
+            while (this.spill.read(buf) != -1) {
+                buf.flip();
+                out.write(Arrays.copyOf(buf.array(), buf.remaining()));
+                buf.clear();
+            }
         }
 
-        this.bw.write("</ul>" + CONST_CRLF);
-        this.bw.write("<br>" + CONST_CRLF);
-        this.footNoteList = new ArrayList<String>();
+        /**
+         * 溜めた本文を破棄する. 一時ファイルは削除する.
+         */
+        void discard() {
+            this.memory.reset();
+            if (this.spill != null) {
+                try {
+                    this.spill.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                this.spill = null;
+            }
+        }
     }
 
     /**
-     * テーブルを書き出す.
-     *
-     * @throws IOException
+     * 行ストア.
+     * 全行の文字を 1 つの char 配列に連結し、行ごとの開始位置を int 配列で持つ.
+     * 行ごとに String を保持しないため、大きなドキュメントでもオブジェクト数が増えない.
      */
-    private void tableWrite() throws IOException {
-
-        // テーブルデータがない場合は処理終了
-        if (this.tableHeader.equals("")
-         && this.tableDataList.size() == 0) {
-            return;
+    private static final class LineStore {
+
+        /**
+         * 全行の文字.
+         */
+        private char[] chars = new char[4096];
+
+        /**
+         * 使用中の文字数.
+         */
+        private int length = 0;
+
+        /**
+         * 行ごとの開始位置(offsets[i + 1] が i 行目の終了位置).
+         */
+        private int[] offsets = new int[129];
+
+        /**
+         * 行数.
+         */
+        private int size = 0;
+
+        /**
+         * 行を追加する.
+         * @param line 行
+         */
+        void add(final String line) {
+            int n = line.length();
+            this.reserve(n);
+            line.getChars(0, n, this.chars, this.length);
+            this.length += n;
+            this.endLine();
         }
 
-        this.bw.write("<table class=\"type01\">" + CONST_CRLF);
-        this.bw.write("  <tr>" + CONST_CRLF);
-
-        StringTokenizer header = new StringTokenizer(this.tableHeader, "|");
-        while (header.hasMoreTokens()) {
-            this.bw.write("    <th>" + header.nextToken().trim() + "</th>" + CONST_CRLF);
+        /**
+         * 書きかけの行に文字を追加する. &lt; と &gt; は実体参照にする.
+         * @param src 文字
+         * @param off 開始位置
+         * @param len 文字数
+         */
+        void appendEscaped(final char[] src, final int off, final int len) {
+            // 全部が実体参照になった場合の文字数を確保しておく
+            this.reserve(len * 4);
+            char[] dst = this.chars;
+            int pos = this.length;
+            for (int i = off; i < off + len; i++) {
+                char c = src[i];
+                if (c == '<') {
+                    dst[pos++] = '&';
+                    dst[pos++] = 'l';
+                    dst[pos++] = 't';
+                    dst[pos++] = ';';
+                } else if (c == '>') {
+                    dst[pos++] = '&';
+                    dst[pos++] = 'g';
+                    dst[pos++] = 't';
+                    dst[pos++] = ';';
+                } else {
+                    dst[pos++] = c;
+                }
+            }
+            this.length = pos;
         }
 
-        this.bw.write("  </tr>" + CONST_CRLF);
+        /**
+         * 書きかけの行があるかどうか.
+         * @return 最後の行の後に追加した文字があれば true
+         */
+        boolean hasOpenLine() {
+            return this.length > this.offsets[this.size];
+        }
 
-        for (int i = 0; i < this.tableDataList.size(); i++) {
-            this.bw.write("  <tr>" + CONST_CRLF);
+        /**
+         * 書きかけの行を 1 行として確定する.
+         */
+        void endLine() {
+            if (this.size + 2 > this.offsets.length) {
+                this.offsets = Arrays.copyOf(this.offsets, this.offsets.length * 2);
+            }
+            this.size++;
+            this.offsets[this.size] = this.length;
+        }
 
-            String line = this.tableDataList.get(i);
-            StringTokenizer data = new StringTokenizer(line, "|");
+        /**
+         * 全行を消去する(配列は次の読み込みで使い回す).
+         */
+        void clear() {
+            this.length = 0;
+            this.size = 0;
+        }
 
-            while (data.hasMoreTokens()) {
-                this.bw.write("    <td>" + data.nextToken().trim() + "</td>" + CONST_CRLF);
+        /**
+         * 文字の追加に必要な大きさを確保する.
+         * @param n 追加する文字数
+         */
+        private void reserve(final int n) {
+            if (this.length + n > this.chars.length) {
+                this.chars = Arrays.copyOf(this.chars, Math.max(this.length + n, this.chars.length * 2));
             }
+        }
 
-            this.bw.write("  </tr>" + CONST_CRLF);
+        /**
+         * 行数を取得する.
+         * @return 行数
+         */
+        int size() {
+            return this.size;
         }
 
-        this.bw.write("</table>" + CONST_CRLF);
+        /**
+         * 行の先頭の文字を取得する.
+         * @param index 行番号
+         * @return 先頭の文字. 空行の場合は -1.
+         */
+        int first(final int index) {
+            if (this.offsets[index] == this.offsets[index + 1]) {
+                return -1;
+            }
+            return this.chars[this.offsets[index]];
+        }
 
-        this.tableHeader = "";
-        this.tableDataList = new ArrayList<String>();
+        /**
+         * 行の文字列を作成する.
+         * @param index 行番号
+         * @return 行の文字列
+         */
+        String get(final int index) {
+            if (index < 0 || index >= this.size) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + this.size);
+            }
+            int start = this.offsets[index];
+            return new String(this.chars, start, this.offsets[index + 1] - start);
+        }
     }
 
     /**
-     * ページの上部に目次を出力する.
+     * 入力ファイルの行の読み込み.
+     * ファイルをメモリマップ(小さなファイルは 1 回で読み込み)し、バイト列のまま
+     * 改行位置を探す. 文字列は必要な行だけ作成する.
+     * 改行は BufferedReader#readLine と同じく \n, \r, \r\n のいずれかとする.
      */
-    private void createTOC() throws IOException {
+    private static final class MappedLines {
+
+        /**
+         * メモリマップするファイルの大きさ(バイト).
+         * これより小さなファイルはヒープへ読み込む方が速く、マップの数も増えない.
+         */
+        private static final int MAP_THRESHOLD = 256 * 1024;
+
+        /**
+         * ファイルの内容.
+         */
+        private final ByteBuffer bytes;
+
+        /**
+         * ファイルの大きさ.
+         */
+        private final int limit;
+
+        /**
+         * 次の行の開始位置.
+         */
+        private int pos = 0;
+
+        /**
+         * 現在の行の開始位置.
+         */
+        private int start = 0;
+
+        /**
+         * 現在の行の終了位置(改行を含まない).
+         */
+        private int end = 0;
+
+        /**
+         * 文字列の作成用(メモリマップした場合だけ使用する).
+         */
+        private byte[] scratch = new byte[0];
+
+        /**
+         * コンストラクタ.
+         * @param bytes ファイルの内容
+         */
+        private MappedLines(final ByteBuffer bytes) {
+            this.bytes = bytes;
+            this.limit = bytes.limit();
+        }
+
+        /**
+         * ファイルを開く.
+         * @param file ファイル
+         * @return 行の読み込み
+         * @throws IOException 読み込み時の例外
+         */
+        static MappedLines open(final File file) throws IOException {
+            if (!file.exists()) {
+                throw new FileNotFoundException(file.getPath() + " (No such file or directory)");
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("File too large: " + file.getPath());
+                }
+                if (size >= MAP_THRESHOLD) {
+                    return new MappedLines(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+                }
+                ByteBuffer buf = ByteBuffer.allocate((int) size);
+                while (buf.hasRemaining() && channel.read(buf) != -1) {
+                    continue;
+                }
+                buf.flip();
+                return new MappedLines(buf);
+            }
+        }
 
-        int tmpH1Cnt = 0;
-        int tmpH2Cnt = 0;
-        int tmpH3Cnt = 0;
+        /**
+         * メモリマップした内容を物理メモリへ読み込んでおく.
+         * ヒープへ読み込んだ場合は何もしない.
+         */
+        void prefetch() {
+            if (this.bytes instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) this.bytes).load();
+            }
+        }
 
-        int nowLv = 0;
-        this.bw.write("<u>Table of Contents.</u> &nbsp; <span class=\"toc\"><a href=\"" + this.tocFilePath + "\">top</a></span>");
-        this.bw.write("<ul class=\"toc\">" + CONST_CRLF);
-        for (int i = 0; i < this.backupList.size(); i++) {
-            String line = this.backupList.get(i);
-            if (line == null || line.length() == 0) {
-                continue;
+        /**
+         * 最初の行から読み直す.
+         */
+        void rewind() {
+            this.pos = 0;
+            this.start = 0;
+            this.end = 0;
+        }
+
+        /**
+         * 次の行へ進む.
+         * @return 行があれば true
+         */
+        boolean next() {
+            if (this.pos >= this.limit) {
+                return false;
             }
-            String prefix = line.substring(0, 1);
-            if ("=".equals(prefix)) {
-                if (nowLv == 0) {
-                    this.bw.write("  <li><a href=\"#h1_" + tmpH1Cnt + "\">" + this.backupList.get(i - 1) + "</a></li>" + CONST_CRLF);
-                    tmpH1Cnt++;
-                    nowLv = 1;
-                } else if (nowLv == 1) {
-                    this.bw.write("  <li><a href=\"#h1_" + tmpH1Cnt + "\">" + this.backupList.get(i - 1) + "</a></li>" + CONST_CRLF);
-                    tmpH1Cnt++;
-                } else if (nowLv == 2) {
-                    this.bw.write("  </ul>" + CONST_CRLF);
-                    this.bw.write("  <li><a href=\"#h1_" + tmpH1Cnt + "\">" + this.backupList.get(i - 1) + "</a></li>" + CONST_CRLF);
-                    tmpH1Cnt++;
-                    nowLv = 1;
-                } else if (nowLv == 3) {
-                    this.bw.write("    </ul>" + CONST_CRLF);
-                    this.bw.write("  </ul>" + CONST_CRLF);
-                    this.bw.write("  <li><a href=\"#h1_" + tmpH1Cnt + "\">" + this.backupList.get(i - 1) + "</a></li>" + CONST_CRLF);
-                    tmpH1Cnt++;
-                    nowLv = 1;
+            this.start = this.pos;
+            for (int i = this.pos; i < this.limit; i++) {
+                byte b = this.bytes.get(i);
+                if (b == '\n') {
+                    this.end = i;
+                    this.pos = i + 1;
+                    return true;
+                } else if (b == '\r') {
+                    this.end = i;
+                    this.pos = i + 1;
+                    if (this.pos < this.limit && this.bytes.get(this.pos) == '\n') {
+                        this.pos++;
+                    }
+                    return true;
                 }
-            } else if ("-".equals(prefix)) {
-                if (nowLv == 1) {
-                    this.bw.write("  <ul>" + CONST_CRLF);
-                    this.bw.write("    <li><a href=\"#h2_" + tmpH2Cnt + "\">" + this.backupList.get(i - 1) + "</a></li>" + CONST_CRLF);
-                    tmpH2Cnt++;
-                    nowLv = 2;
-                } else if (nowLv == 2) {
-                    this.bw.write("    <li><a href=\"#h2_" + tmpH2Cnt + "\">" + this.backupList.get(i - 1) + "</a></li>" + CONST_CRLF);
-                    tmpH2Cnt++;
-                } else if (nowLv == 3) {
-                    this.bw.write("    </ul>" + CONST_CRLF);
-                    this.bw.write("    <li><a href=\"#h2_" + tmpH2Cnt + "\">" + this.backupList.get(i - 1) + "</a></li>" + CONST_CRLF);
-                    tmpH2Cnt++;
-                    nowLv = 2;
+            }
+            this.end = this.limit;
+            this.pos = this.limit;
+            return true;
+        }
+
+        /**
+         * 現在の行の開始位置.
+         * @return 開始位置
+         */
+        int start() {
+            return this.start;
+        }
+
+        /**
+         * 現在の行の終了位置(改行を含まない).
+         * @return 終了位置
+         */
+        int end() {
+            return this.end;
+        }
+
+        /**
+         * 現在の行の先頭のバイト.
+         * @return 先頭のバイト. 空行の場合は -1.
+         */
+        int first() {
+            if (this.start == this.end) {
+                return -1;
+            }
+            return this.bytes.get(this.start) & 0xff;
+        }
+
+        /**
+         * 現在の行にバイト列(ASCII 文字列)が含まれるかどうか.
+         * @param needle 探すバイト列
+         * @return 含まれる場合は true
+         */
+        boolean contains(final byte[] needle) {
+            int last = this.end - needle.length;
+            for (int i = this.start; i <= last; i++) {
+                int j = 0;
+                while (j < needle.length && this.bytes.get(i + j) == needle[j]) {
+                    j++;
                 }
-            } else if ("~".equals(prefix)) {
-                if (nowLv == 2) {
-                    this.bw.write("    <ul>" + CONST_CRLF);
-                    this.bw.write("      <li><a href=\"#h3_" + tmpH3Cnt + "\">" + this.backupList.get(i - 1) + "</a></li>" + CONST_CRLF);
-                    tmpH3Cnt++;
-                    nowLv = 3;
-                } else if (nowLv == 3) {
-                    this.bw.write("      <li><a href=\"#h3_" + tmpH3Cnt + "\">" + this.backupList.get(i - 1) + "</a></li>" + CONST_CRLF);
-                    tmpH3Cnt++;
+                if (j == needle.length) {
+                    return true;
                 }
             }
+            return false;
+        }
+
+        /**
+         * 現在の行の文字列を作成する.
+         * @return 行の文字列
+         */
+        String text() {
+            return this.text(this.start, this.end);
         }
-        if (nowLv == 2) {
-            this.bw.write("  </ul>" + CONST_CRLF);
-        } else if (nowLv == 3) {
-            this.bw.write("    </ul>" + CONST_CRLF);
-            this.bw.write("  </ul>" + CONST_CRLF);
+
+        /**
+         * 指定した範囲の文字列を作成する.
+         * @param from 開始位置
+         * @param to 終了位置
+         * @return 文字列
+         */
+        String text(final int from, final int to) {
+            int length = to - from;
+            if (this.bytes.hasArray()) {
+                return new String(this.bytes.array(), this.bytes.arrayOffset() + from, length, StandardCharsets.UTF_8);
+            }
+            if (this.scratch.length < length) {
+                this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+            }
+            this.bytes.get(from, this.scratch, 0, length);
+            return new String(this.scratch, 0, length, StandardCharsets.UTF_8);
         }
-        this.bw.write("</ul>" + CONST_CRLF);
     }
 
     /**